@@ -0,0 +1,56 @@
+package com.pythondrops.testing;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Result set mapping of {@link DatabaseWrapper#getUser} and the point lookup that replaced it
+ * when posting, for users in a few or in many channels.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetUserBenchmark {
+
+    @Param({ "10", "1000" })
+    public int channels;
+
+    private DatabaseWrapper databaseWrapper;
+    private UUID userId;
+    private UUID channelId;
+
+    @Setup
+    public void setUp() {
+        List<UUID> channelIds = StubDatabase.randomIds(channels);
+        databaseWrapper = new DatabaseWrapper(StubDatabase.withUser(channelIds));
+        userId = UUID.randomUUID();
+        channelId = channelIds.get(0);
+    }
+
+    @Benchmark
+    public User getUser() throws SQLException {
+        return databaseWrapper.getUser(userId);
+    }
+
+    @Benchmark
+    public Membership getMembership() throws SQLException {
+        return databaseWrapper.getMembership(userId, channelId);
+    }
+}
@@ -0,0 +1,69 @@
+package com.pythondrops.testing;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The "is this user in the channel" check done on {@link User#channels}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MembershipBenchmark {
+
+    @Param({ "10", "1000", "100000" })
+    public int channels;
+
+    private Set<UUID> hashSet;
+    private ChannelSet channelSet;
+    private UUID member;
+    private UUID stranger;
+
+    @Setup
+    public void setUp() {
+        List<UUID> channelIds = StubDatabase.randomIds(channels);
+        hashSet = new HashSet<>(channelIds);
+        channelSet = new ChannelSet(channels);
+        channelSet.addAll(channelIds);
+        member = channelIds.get(channels / 2);
+        stranger = UUID.randomUUID();
+    }
+
+    @Benchmark
+    public boolean hashSetMember() {
+        return hashSet.contains(member);
+    }
+
+    @Benchmark
+    public boolean hashSetStranger() {
+        return hashSet.contains(stranger);
+    }
+
+    @Benchmark
+    public boolean channelSetMember() {
+        return channelSet.contains(member);
+    }
+
+    @Benchmark
+    public boolean channelSetStranger() {
+        return channelSet.contains(stranger);
+    }
+}
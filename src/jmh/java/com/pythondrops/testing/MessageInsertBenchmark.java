@@ -0,0 +1,94 @@
+package com.pythondrops.testing;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mysql.cj.jdbc.MysqlDataSource;
+
+/**
+ * MESSAGE insert rate as the table grows, with time-ordered or random message ids.
+ *
+ * Needs a MySQL with the schema of database.sql (-Dbench.mysql.port, user, password and host
+ * system properties, defaults are the ones of DatabaseWrapper). MESSAGE is emptied before each
+ * run and never in between, so every measurement iteration writes into a bigger table: compare
+ * the per iteration scores. With TIME_ORDERED they stay flat, with RANDOM they drop once the
+ * primary key no longer fits in the buffer pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1, time = 10)
+@Measurement(iterations = 30, time = 10)
+@Fork(1)
+public class MessageInsertBenchmark {
+
+    private static final int MESSAGES_PER_BATCH = 1000;
+
+    @Param({ "TIME_ORDERED", "RANDOM" })
+    public String idScheme;
+
+    private DatabaseWrapper databaseWrapper;
+    private UUID[] authors;
+    private UUID[] channels;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        MysqlDataSource dataSource = new MysqlDataSource();
+        dataSource.setServerName(System.getProperty("bench.mysql.host", "localhost"));
+        dataSource.setPort(Integer.getInteger("bench.mysql.port", 3306));
+        dataSource.setUser(System.getProperty("bench.mysql.user", "root"));
+        dataSource.setPassword(System.getProperty("bench.mysql.password", "my-secret-pw"));
+        dataSource.setDatabaseName("TESTDB");
+        dataSource.setRewriteBatchedStatements(true);
+        try (Connection conn = dataSource.getConnection();
+             Statement statement = conn.createStatement()) {
+            statement.execute("TRUNCATE TABLE MESSAGE");
+        }
+        databaseWrapper = new DatabaseWrapper(dataSource, new PoolConfig());
+        authors = StubDatabase.randomIds(1000).toArray(new UUID[0]);
+        channels = StubDatabase.randomIds(100).toArray(new UUID[0]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        databaseWrapper.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES_PER_BATCH)
+    public List<UUID> insertMessages() throws SQLException {
+        List<Message> messages = new ArrayList<>(MESSAGES_PER_BATCH);
+        for (int i = 0; i < MESSAGES_PER_BATCH; i++) {
+            Message message = new Message();
+            message.id = idScheme.equals("RANDOM") ? UUID.randomUUID() : UuidGenerator.timeOrdered();
+            message.author = authors[next % authors.length];
+            message.channelId = channels[next % channels.length];
+            message.title = "TITLE " + next;
+            message.content = "Message content " + next;
+            messages.add(message);
+            next++;
+        }
+        return databaseWrapper.postMessages(messages);
+    }
+}
@@ -0,0 +1,75 @@
+package com.pythondrops.testing;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end {@link DemoCode#postMessageToChannel}, with {@link DatabaseWrapper} over the
+ * in-process JDBC stand-in or with {@link InMemoryDatabase}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class PostingBenchmark {
+
+    @Param({ "JDBC", "IN_MEMORY" })
+    public String backend;
+
+    private DemoCode demoCode;
+    private DemoCode cachedDemoCode;
+    private UUID userId;
+    private UUID channelId;
+
+    @Setup
+    public void setUp() {
+        List<UUID> channelIds = StubDatabase.randomIds(100);
+        userId = UUID.randomUUID();
+        channelId = channelIds.get(0);
+        Database database;
+        if (backend.equals("IN_MEMORY")) {
+            InMemoryDatabase inMemory = new InMemoryDatabase();
+            inMemory.putUser(userId, "https://user.chat.com/internal/pii/1", false);
+            for (UUID id : channelIds) {
+                Channel channel = new Channel();
+                channel.id = id;
+                channel.name = "Channel " + id;
+                inMemory.putChannel(channel);
+                inMemory.putMembership(userId, id, false);
+            }
+            database = inMemory;
+        } else {
+            database = new DatabaseWrapper(StubDatabase.withUser(channelIds));
+        }
+        demoCode = new DemoCode(database);
+        cachedDemoCode = new DemoCode(database, new MembershipCache(10000, 60000));
+    }
+
+    @Benchmark
+    public UUID postMessage() throws SQLException, UserNotAllowedException, ChannelNotAvailableException, RateLimitExceededException {
+        return demoCode.postMessageToChannel(userId, channelId, "TITLE", "Message content");
+    }
+
+    @Benchmark
+    public UUID postMessageWithMembershipCache() throws SQLException, UserNotAllowedException, ChannelNotAvailableException, RateLimitExceededException {
+        return cachedDemoCode.postMessageToChannel(userId, channelId, "TITLE", "Message content");
+    }
+}
@@ -0,0 +1,71 @@
+package com.pythondrops.testing;
+
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A post of a suspended user, answered by the rejection cache, thrown by
+ * {@link DemoCode#postMessageToChannel} and returned by {@link DemoCode#tryPostMessageToChannel}.
+ * The two exception benchmarks show what a stack trace adds to each rejection; it grows with the
+ * depth of the caller's stack, which here is only a few frames.
+ * Average time on one thread: the rejection cost itself, without contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class RejectionBenchmark {
+
+    private DemoCode demoCode;
+    private UUID userId;
+    private UUID channelId;
+
+    @Setup
+    public void setUp() {
+        userId = UUID.randomUUID();
+        channelId = UUID.randomUUID();
+        InMemoryDatabase database = new InMemoryDatabase();
+        database.putUser(userId, "https://user.chat.com/internal/pii/1", true);
+        demoCode = new DemoCode(database, new MembershipCache(10000, 60000, 10000, 60000));
+    }
+
+    @Benchmark
+    public Object postMessageThrows() throws SQLException, ChannelNotAvailableException, RateLimitExceededException {
+        try {
+            return demoCode.postMessageToChannel(userId, channelId, "TITLE", "Message content");
+        } catch (UserNotAllowedException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public PostOutcome tryPostMessage() throws SQLException {
+        return demoCode.tryPostMessageToChannel(userId, channelId, "TITLE", "Message content");
+    }
+
+    @Benchmark
+    public Exception exceptionWithStackTrace() {
+        return new UserNotAllowedException("User does not exist or is suspended");
+    }
+
+    @Benchmark
+    public Exception exceptionWithoutStackTrace() {
+        return new UserNotAllowedException("User does not exist or is suspended", false);
+    }
+}
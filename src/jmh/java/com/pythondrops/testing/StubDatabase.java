@@ -0,0 +1,172 @@
+package com.pythondrops.testing;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+
+import javax.sql.DataSource;
+
+/**
+ * In-process stand-in for MySQL, so benchmarks measure our code and not the network.
+ *
+ * Queries answer with the rows returned by a function of the SQL text; updates and batches
+ * always succeed. Column lookups ignore case.
+ */
+final class StubDatabase {
+
+    private StubDatabase() {
+    }
+
+    static DataSource dataSource(Function<String, List<Map<String, Object>>> rows) {
+        return proxy(DataSource.class, (proxy, method, args) -> {
+            if (method.getName().equals("getConnection")) {
+                return connection(rows);
+            }
+            return defaultValue(method);
+        });
+    }
+
+    /**
+     * A database with one active user that is a member of the given visible channels.
+     * Answers {@link DatabaseWrapper#getUser} and {@link DatabaseWrapper#getMembership} (always allowed).
+     */
+    static DataSource withUser(List<UUID> channelIds) {
+        List<Map<String, Object>> userRows = new ArrayList<>(channelIds.size());
+        for (UUID channelId : channelIds) {
+            userRows.add(row("PII_CONTENT_LINK", "https://user.chat.com/internal/pii/93483", "SUSPENDED", false,
+              "CHANNEL_ID", bytes(channelId), "CHANNEL_SUSPENDED", false, "HIDDEN", false));
+        }
+        List<Map<String, Object>> membershipRows = Collections.singletonList(
+          row("SUSPENDED", false, "CHANNEL_ID", bytes(channelIds.get(0)), "CHANNEL_SUSPENDED", false, "HIDDEN", false));
+        return dataSource(sql -> {
+            if (sql.contains("INNER JOIN USER_CHANNEL")) {
+                return userRows;
+            } else if (sql.contains("LEFT JOIN USER_CHANNEL")) {
+                return membershipRows;
+            }
+            return Collections.emptyList();
+        });
+    }
+
+    static List<UUID> randomIds(int count) {
+        List<UUID> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(UUID.randomUUID());
+        }
+        return ids;
+    }
+
+    /**
+     * @return a row with the given column labels and values, alternated
+     */
+    static Map<String, Object> row(Object... labelsAndValues) {
+        Map<String, Object> row = new HashMap<>();
+        for (int i = 0; i < labelsAndValues.length; i += 2) {
+            row.put(((String) labelsAndValues[i]).toUpperCase(), labelsAndValues[i + 1]);
+        }
+        return row;
+    }
+
+    static byte[] bytes(UUID uuid) {
+        return UuidCodec.toBytes(uuid);
+    }
+
+    private static Connection connection(Function<String, List<Map<String, Object>>> rows) {
+        return proxy(Connection.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "prepareStatement":
+                    return statement((String) args[0], rows);
+                case "getAutoCommit":
+                case "isValid":
+                    return true;
+                default:
+                    return defaultValue(method);
+            }
+        });
+    }
+
+    private static PreparedStatement statement(String sql, Function<String, List<Map<String, Object>>> rows) {
+        int[] batched = new int[1];
+        return proxy(PreparedStatement.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "executeQuery":
+                    return resultSet(rows.apply(sql));
+                case "executeUpdate":
+                    return 1;
+                case "addBatch":
+                    batched[0]++;
+                    return null;
+                case "executeBatch":
+                    int[] counts = new int[batched[0]];
+                    Arrays.fill(counts, 1);
+                    batched[0] = 0;
+                    return counts;
+                default:
+                    return defaultValue(method);
+            }
+        });
+    }
+
+    private static ResultSet resultSet(List<Map<String, Object>> rows) {
+        List<Map<String, Object>> data = rows == null ? Collections.emptyList() : new ArrayList<>(rows);
+        int[] cursor = { -1 };
+        Object[] last = new Object[1];
+        return proxy(ResultSet.class, (proxy, method, args) -> {
+            String name = method.getName();
+            if (name.equals("next")) {
+                return ++cursor[0] < data.size();
+            }
+            if (name.equals("wasNull")) {
+                return last[0] == null;
+            }
+            if (name.startsWith("get") && args != null && args.length == 1 && args[0] instanceof String) {
+                Object value = data.get(cursor[0]).get(((String) args[0]).toUpperCase());
+                last[0] = value;
+                if (value == null) {
+                    return defaultValue(method);
+                }
+                if (method.getReturnType() == String.class) {
+                    return value.toString();
+                }
+                return value;
+            }
+            return defaultValue(method);
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(StubDatabase.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == double.class) {
+            return 0.0;
+        } else if (type == float.class) {
+            return 0.0f;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,92 @@
+package com.pythondrops.testing;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * UUID conversions done for every bound parameter and every id read from MySQL.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UuidBenchmark {
+
+    private UUID uuid;
+    private byte[] uuidBytes;
+    private String uuidString;
+
+    @Setup
+    public void setUp() {
+        uuid = UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002");
+        uuidBytes = StubDatabase.bytes(uuid);
+        uuidString = uuid.toString();
+    }
+
+    @Benchmark
+    public byte[] encodeWithByteBuffer() {
+        byte[] bytes = new byte[16];
+        ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN).putLong(uuid.getMostSignificantBits())
+          .putLong(uuid.getLeastSignificantBits());
+        return bytes;
+    }
+
+    @Benchmark
+    public byte[] encodeWithCodec() {
+        return UuidCodec.toBytes(uuid);
+    }
+
+    @Benchmark
+    public UUID decodeBinary() {
+        return UuidCodec.fromBytes(uuidBytes);
+    }
+
+    /**
+     * Bind and read back as BINARY(16).
+     */
+    @Benchmark
+    public UUID roundTripBinary() {
+        return UuidCodec.fromBytes(UuidCodec.toBytes(uuid));
+    }
+
+    /**
+     * Bind with UUID_TO_BIN(?) and read back with BIN_TO_UUID.
+     */
+    @Benchmark
+    public UUID roundTripString() {
+        return UUID.fromString(uuid.toString());
+    }
+
+    /**
+     * What reading a BIN_TO_UUID column costs on our side.
+     */
+    @Benchmark
+    public UUID decodeString() {
+        return UUID.fromString(uuidString);
+    }
+
+    @Benchmark
+    public String encodeString() {
+        return uuid.toString();
+    }
+
+    @Benchmark
+    public UUID generateTimeOrdered() {
+        return UuidGenerator.timeOrdered();
+    }
+}
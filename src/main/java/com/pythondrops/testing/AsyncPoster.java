@@ -0,0 +1,113 @@
+package com.pythondrops.testing;
+
+import java.lang.reflect.Method;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking front end for {@link DemoCode#postMessageToChannel}.
+ *
+ * Each post runs in its own virtual thread when the JVM supports them (Java 21+), or in a
+ * cached platform thread pool otherwise. At most {@code maxConcurrency} posts talk to the
+ * database at the same time, usually the connection pool size, and new posts are rejected
+ * once {@code maxInFlight} are waiting or running.
+ */
+public class AsyncPoster implements AutoCloseable {
+
+    private final DemoCode demoCode;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final Semaphore databaseSlots;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+
+    public AsyncPoster(DemoCode demoCode, int maxConcurrency, int maxInFlight) {
+        if (maxConcurrency < 1 || maxInFlight < maxConcurrency) {
+            throw new IllegalArgumentException("maxInFlight must be greater or equal to maxConcurrency, and both positive");
+        }
+        this.demoCode = demoCode;
+        this.databaseSlots = new Semaphore(maxConcurrency);
+        this.inFlight = new Semaphore(maxInFlight);
+        this.maxInFlight = maxInFlight;
+        ExecutorService virtual = newVirtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual : Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "async-poster");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null; // Running on a JVM older than 21
+        }
+    }
+
+    /**
+     * Same as {@link DemoCode#postMessageToChannel}, without blocking the caller.
+     *
+     * @return CompletableFuture with the new message UUID. It fails with
+     *         RejectedExecutionException when too many posts are in flight, or with the exception
+     *         thrown by DemoCode (SQLException, UserNotAllowedException, ChannelNotAvailableException,
+     *         RateLimitExceededException, IllegalArgumentException)
+     */
+    public CompletableFuture<UUID> postMessageToChannel(UUID userId, UUID channelId, String title, String content) {
+        if (!inFlight.tryAcquire()) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Too many posts in flight: " + maxInFlight));
+        }
+        try {
+            return CompletableFuture.supplyAsync(() -> post(userId, channelId, title, content), executor);
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private UUID post(UUID userId, UUID channelId, String title, String content) {
+        try {
+            databaseSlots.acquire();
+            try {
+                return demoCode.postMessageToChannel(userId, channelId, title, content);
+            } finally {
+                databaseSlots.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * @return posts accepted and not finished yet
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * Stops accepting posts and waits for the ones in flight.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+    }
+}
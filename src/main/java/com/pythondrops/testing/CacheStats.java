@@ -0,0 +1,22 @@
+package com.pythondrops.testing;
+
+/**
+ * Point in time snapshot of an {@link ExpiringCache}.
+ */
+public class CacheStats {
+    public long hits;
+    public long misses;
+    public long evictions;
+    public long expirations;
+    public int size;
+
+    public double hitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{" + "hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + ", expirations=" + expirations + ", size=" + size + '}';
+    }
+}
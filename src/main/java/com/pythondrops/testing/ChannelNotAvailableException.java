@@ -6,6 +6,11 @@ public class ChannelNotAvailableException extends Exception {
         this.message = message;
     }
 
+    public ChannelNotAvailableException (String message, boolean writableStackTrace) {
+        super(null, null, false, writableStackTrace);
+        this.message = message;
+    }
+
     @Override
     public String getMessage() {
         return this.message;
@@ -0,0 +1,167 @@
+package com.pythondrops.testing;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+/**
+ * A set of channel UUIDs stored as pairs of longs in an open addressing table.
+ *
+ * Channel ids can be added straight from BINARY(16) columns and {@link #contains(Object)}
+ * does not allocate, which matters for users that belong to thousands of channels.
+ * Removal is not supported.
+ */
+public class ChannelSet extends AbstractSet<UUID> {
+
+    private static final int MIN_CAPACITY = 8;
+
+    // keys[2 * i] and keys[2 * i + 1] are the most and least significant bits of slot i.
+    // The nil UUID marks an empty slot, so it is tracked apart.
+    private long[] keys;
+    private int size;
+    private boolean containsNil;
+
+    public ChannelSet() {
+        this(MIN_CAPACITY);
+    }
+
+    public ChannelSet(int expectedSize) {
+        int slots = MIN_CAPACITY;
+        while (slots < expectedSize * 2) {
+            slots <<= 1;
+        }
+        this.keys = new long[slots * 2];
+    }
+
+    @Override
+    public boolean add(UUID uuid) {
+        return add(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * Adds a channel id read from a BINARY(16) column.
+     */
+    public boolean add(byte[] uuidBytes) {
+        return add(UuidCodec.readLong(uuidBytes, 0), UuidCodec.readLong(uuidBytes, 8));
+    }
+
+    public boolean add(long msb, long lsb) {
+        if (msb == 0 && lsb == 0) {
+            if (containsNil) {
+                return false;
+            }
+            containsNil = true;
+            size++;
+            return true;
+        }
+        if ((size + 1) * 2 > keys.length / 2) {
+            resize();
+        }
+        if (insert(keys, msb, lsb)) {
+            size++;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof UUID)) {
+            return false;
+        }
+        UUID uuid = (UUID) o;
+        return contains(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    public boolean contains(long msb, long lsb) {
+        if (msb == 0 && lsb == 0) {
+            return containsNil;
+        }
+        int mask = keys.length / 2 - 1;
+        int slot = hash(msb, lsb) & mask;
+        while (true) {
+            long m = keys[slot * 2];
+            long l = keys[slot * 2 + 1];
+            if (m == msb && l == lsb) {
+                return true;
+            }
+            if (m == 0 && l == 0) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<UUID> iterator() {
+        return new Iterator<UUID>() {
+            private int slot = containsNil ? -1 : nextSlot(0);
+
+            @Override
+            public boolean hasNext() {
+                return slot < keys.length / 2;
+            }
+
+            @Override
+            public UUID next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                UUID uuid = slot < 0 ? new UUID(0, 0) : new UUID(keys[slot * 2], keys[slot * 2 + 1]);
+                slot = nextSlot(slot + 1);
+                return uuid;
+            }
+        };
+    }
+
+    private int nextSlot(int from) {
+        int slot = from;
+        while (slot < keys.length / 2 && keys[slot * 2] == 0 && keys[slot * 2 + 1] == 0) {
+            slot++;
+        }
+        return slot;
+    }
+
+    private void resize() {
+        long[] old = keys;
+        long[] resized = new long[old.length * 2];
+        for (int i = 0; i < old.length; i += 2) {
+            if (old[i] != 0 || old[i + 1] != 0) {
+                insert(resized, old[i], old[i + 1]);
+            }
+        }
+        keys = resized;
+    }
+
+    private static boolean insert(long[] table, long msb, long lsb) {
+        int mask = table.length / 2 - 1;
+        int slot = hash(msb, lsb) & mask;
+        while (true) {
+            long m = table[slot * 2];
+            long l = table[slot * 2 + 1];
+            if (m == 0 && l == 0) {
+                table[slot * 2] = msb;
+                table[slot * 2 + 1] = lsb;
+                return true;
+            }
+            if (m == msb && l == lsb) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static int hash(long msb, long lsb) {
+        long h = msb * 0x9E3779B97F4A7C15L ^ lsb;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
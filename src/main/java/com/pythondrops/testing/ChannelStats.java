@@ -0,0 +1,19 @@
+package com.pythondrops.testing;
+
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Message count and last post time of a channel, kept up to date on every post.
+ */
+public class ChannelStats {
+    public UUID channelId;
+    public long messageCount;
+    /** null when the channel has no messages */
+    public Date lastMessageTime;
+
+    @Override
+    public String toString() {
+        return "ChannelStats{" + "channelId=" + channelId + ", messageCount=" + messageCount + ", lastMessageTime=" + lastMessageTime + '}';
+    }
+}
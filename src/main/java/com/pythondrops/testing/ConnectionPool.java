@@ -0,0 +1,532 @@
+package com.pythondrops.testing;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * A bounded connection pool in front of another DataSource.
+ *
+ * Connections handed out by {@link #getConnection()} go back to the pool when closed,
+ * so callers must always close them (try-with-resources).
+ * Idle connections are validated before being borrowed again and evicted after
+ * {@link PoolConfig#idleTimeoutMillis}, never going below {@link PoolConfig#minSize}.
+ * Each connection keeps up to {@link PoolConfig#statementCacheSize} prepared statements open, so
+ * preparing the same SQL again on a later borrow reuses the statement instead of parsing it again.
+ */
+public class ConnectionPool implements DataSource, AutoCloseable {
+
+    private final DataSource dataSource;
+    private final PoolConfig config;
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final LongAdder acquireCount = new LongAdder();
+    private final LongAdder acquireNanos = new LongAdder();
+    private final LongAdder acquireTimeouts = new LongAdder();
+    private final AtomicLong maxAcquireNanos = new AtomicLong();
+    private final LongAdder statementsPrepared = new LongAdder();
+    private final LongAdder statementsReused = new LongAdder();
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean closed;
+
+    public ConnectionPool(DataSource dataSource, PoolConfig config) {
+        if (config.maxSize < 1 || config.minSize < 0 || config.minSize > config.maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: " + config);
+        }
+        this.dataSource = dataSource;
+        this.config = config;
+        this.permits = new Semaphore(config.maxSize, true);
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "connection-pool-housekeeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, config.idleTimeoutMillis / 2);
+        // First run right away, so minSize connections are opened before the first requests need them
+        this.housekeeper.scheduleWithFixedDelay(this::housekeep, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        long start = System.nanoTime();
+        waiting.incrementAndGet();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(config.acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        } finally {
+            waiting.decrementAndGet();
+        }
+        if (!acquired) {
+            acquireTimeouts.increment();
+            throw new SQLTransientConnectionException("Timeout after " + config.acquireTimeoutMillis + "ms waiting for a connection");
+        }
+
+        PooledConnection pooled;
+        try {
+            pooled = borrow();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        active.incrementAndGet();
+
+        long elapsed = System.nanoTime() - start;
+        acquireCount.increment();
+        acquireNanos.add(elapsed);
+        maxAcquireNanos.accumulateAndGet(elapsed, Math::max);
+        return pooled.lease();
+    }
+
+    private PooledConnection borrow() throws SQLException {
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            if (isValid(pooled.physical)) {
+                return pooled;
+            }
+            discard(pooled);
+        }
+        Connection physical = dataSource.getConnection();
+        total.incrementAndGet();
+        return new PooledConnection(physical);
+    }
+
+    private boolean isValid(Connection physical) {
+        try {
+            return physical.isValid(config.validationTimeoutSeconds);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void release(PooledConnection pooled, boolean broken) {
+        active.decrementAndGet();
+        try {
+            if (broken || closed || total.get() > config.maxSize) {
+                discard(pooled);
+            } else {
+                pooled.lastUsed = System.currentTimeMillis();
+                idle.offerFirst(pooled);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void discard(PooledConnection pooled) {
+        total.decrementAndGet();
+        pooled.closeStatements();
+        try {
+            pooled.physical.close();
+        } catch (SQLException e) {
+            // Nothing to do, the connection is gone anyway
+        }
+    }
+
+    private void housekeep() {
+        long deadline = System.currentTimeMillis() - config.idleTimeoutMillis;
+        Iterator<PooledConnection> it = idle.descendingIterator();
+        while (it.hasNext() && total.get() > config.minSize) {
+            PooledConnection pooled = it.next();
+            if (pooled.lastUsed < deadline && idle.removeFirstOccurrence(pooled)) {
+                discard(pooled);
+            }
+        }
+        while (!closed && total.get() < config.minSize) {
+            try {
+                PooledConnection pooled = new PooledConnection(dataSource.getConnection());
+                total.incrementAndGet();
+                pooled.lastUsed = System.currentTimeMillis();
+                idle.offerLast(pooled);
+            } catch (SQLException e) {
+                break; // Database not reachable now, try again on the next run
+            }
+        }
+    }
+
+    /**
+     * Current pool usage and acquire latency since the pool was created.
+     */
+    public PoolStats getStats() {
+        PoolStats stats = new PoolStats();
+        stats.active = active.get();
+        stats.idle = idle.size();
+        stats.waiting = waiting.get();
+        stats.total = total.get();
+        stats.acquireCount = acquireCount.sum();
+        stats.acquireTimeouts = acquireTimeouts.sum();
+        stats.averageAcquireMicros = stats.acquireCount == 0 ? 0 : acquireNanos.sum() / stats.acquireCount / 1000;
+        stats.maxAcquireMicros = maxAcquireNanos.get() / 1000;
+        stats.statementsPrepared = statementsPrepared.sum();
+        stats.statementsReused = statementsReused.sum();
+        return stats;
+    }
+
+    public PoolConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Closes idle connections and stops the pool. Connections still in use are closed when returned.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            discard(pooled);
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Pooled connections always use the pool credentials");
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return dataSource.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        dataSource.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        dataSource.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return dataSource.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return dataSource.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return dataSource.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || dataSource.isWrapperFor(iface);
+    }
+
+    /**
+     * A physical connection owned by the pool.
+     */
+    private class PooledConnection {
+        final Connection physical;
+        // Only touched by the thread holding the current lease
+        final LinkedHashMap<String, CachedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+        volatile long lastUsed;
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        Connection lease() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+              new Class<?>[] { Connection.class }, new Lease(this));
+        }
+
+        CachedStatement prepare(String sql) throws SQLException {
+            CachedStatement cached = statements.get(sql);
+            if (cached != null && !cached.inUse) {
+                cached.inUse = true;
+                statementsReused.increment();
+                return cached;
+            }
+            PreparedStatement physicalStatement = physical.prepareStatement(sql);
+            statementsPrepared.increment();
+            CachedStatement prepared = new CachedStatement(physicalStatement);
+            prepared.inUse = true;
+            if (cached == null) {
+                // A statement already in use by this lease is not replaced, the new one is not cached
+                statements.put(sql, prepared);
+                prepared.cached = true;
+                if (statements.size() > config.statementCacheSize) {
+                    Iterator<CachedStatement> eldest = statements.values().iterator();
+                    CachedStatement evicted = eldest.next();
+                    eldest.remove();
+                    evicted.cached = false;
+                    if (!evicted.inUse) {
+                        closeQuietly(evicted.physical);
+                    }
+                }
+            }
+            return prepared;
+        }
+
+        void closeStatements() {
+            for (CachedStatement cached : statements.values()) {
+                closeQuietly(cached.physical);
+            }
+            statements.clear();
+        }
+    }
+
+    private static void closeQuietly(Statement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            // Nothing to do, the statement is discarded anyway
+        }
+    }
+
+    /**
+     * A physical prepared statement kept open for reuse by later leases of the same connection.
+     */
+    private static class CachedStatement {
+        final PreparedStatement physical;
+        boolean inUse;
+        boolean cached;
+        // Settings a borrower changed, put back before the next one gets the statement
+        boolean settingsChanged;
+        int fetchSize;
+        int maxRows;
+        int queryTimeout;
+        // Changed a setting that is not put back, closed when returned
+        boolean reusable = true;
+
+        CachedStatement(PreparedStatement physical) {
+            this.physical = physical;
+        }
+
+        void saveSettings() throws SQLException {
+            fetchSize = physical.getFetchSize();
+            maxRows = physical.getMaxRows();
+            queryTimeout = physical.getQueryTimeout();
+            settingsChanged = true;
+        }
+
+        void restoreSettings() throws SQLException {
+            physical.setFetchSize(fetchSize);
+            physical.setMaxRows(maxRows);
+            physical.setQueryTimeout(queryTimeout);
+            settingsChanged = false;
+        }
+    }
+
+    /**
+     * The connection seen by one borrower. Closing it returns the physical connection to the pool.
+     */
+    private class Lease implements InvocationHandler {
+        private final PooledConnection pooled;
+        private final List<CachedStatement> leased = new ArrayList<>();
+        private boolean returned;
+        private boolean autoCommitChanged;
+        private boolean broken;
+
+        Lease(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!returned) {
+                        returned = true;
+                        // Statements left open by the borrower are closed with the connection
+                        for (CachedStatement cached : new ArrayList<>(leased)) {
+                            returnStatement(cached);
+                        }
+                        release(pooled, broken || !reset());
+                    }
+                    return null;
+                case "isClosed":
+                    return returned;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled" + pooled.physical;
+                case "setAutoCommit":
+                    autoCommitChanged = true;
+                    break;
+                default:
+                    break;
+            }
+            if (returned) {
+                throw new SQLException("Connection is closed");
+            }
+            if (method.getName().equals("prepareStatement") && args.length == 1 && config.statementCacheSize > 0) {
+                CachedStatement cached;
+                try {
+                    cached = pooled.prepare((String) args[0]);
+                } catch (SQLException e) {
+                    markIfFatal(e);
+                    throw e;
+                }
+                leased.add(cached);
+                return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                  new Class<?>[] { PreparedStatement.class }, new StatementLease(this, cached, (Connection) proxy));
+            }
+            try {
+                return method.invoke(pooled.physical, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException) {
+                    markIfFatal((SQLException) cause);
+                }
+                throw cause;
+            }
+        }
+
+        void markIfFatal(SQLException e) {
+            // SQLState class 08 means the connection itself failed
+            if (e.getSQLState() != null && e.getSQLState().startsWith("08")) {
+                broken = true;
+            }
+        }
+
+        void returnStatement(CachedStatement cached) {
+            leased.remove(cached);
+            if (!cached.cached) {
+                closeQuietly(cached.physical);
+                return;
+            }
+            if (!cached.reusable) {
+                pooled.statements.values().remove(cached);
+                closeQuietly(cached.physical);
+                return;
+            }
+            try {
+                cached.physical.clearParameters();
+                cached.physical.clearBatch();
+                if (cached.settingsChanged) {
+                    cached.restoreSettings();
+                }
+                cached.inUse = false;
+            } catch (SQLException e) {
+                pooled.statements.values().remove(cached);
+                closeQuietly(cached.physical);
+            }
+        }
+
+        private boolean reset() {
+            if (!autoCommitChanged) {
+                return true;
+            }
+            try {
+                if (!pooled.physical.getAutoCommit()) {
+                    pooled.physical.rollback();
+                    pooled.physical.setAutoCommit(true);
+                }
+                return true;
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+    }
+
+    /**
+     * A prepared statement seen by one borrower. Closing it keeps the physical statement open for reuse.
+     */
+    private static class StatementLease implements InvocationHandler {
+        // Statement settings put back when the statement returns to the cache, such as the streaming
+        // fetch size of the timeline and export reads
+        private static final Set<String> RESTORED_SETTINGS = Set.of("setFetchSize", "setMaxRows", "setLargeMaxRows", "setQueryTimeout");
+        private static final Set<String> OTHER_SETTINGS = Set.of("setFetchDirection", "setMaxFieldSize", "setEscapeProcessing",
+          "setCursorName", "setPoolable", "closeOnCompletion");
+
+        private final Lease lease;
+        private final CachedStatement cached;
+        private final Connection connection;
+        private boolean closed;
+
+        StatementLease(Lease lease, CachedStatement cached, Connection connection) {
+            this.lease = lease;
+            this.cached = cached;
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        lease.returnStatement(cached);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || lease.returned;
+                case "getConnection":
+                    return connection;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Cached" + cached.physical;
+                default:
+                    break;
+            }
+            if (closed || lease.returned) {
+                throw new SQLException("Statement is closed");
+            }
+            if (RESTORED_SETTINGS.contains(method.getName())) {
+                if (!cached.settingsChanged) {
+                    cached.saveSettings();
+                }
+            } else if (OTHER_SETTINGS.contains(method.getName())) {
+                cached.reusable = false;
+            }
+            try {
+                return method.invoke(cached.physical, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException) {
+                    lease.markIfFatal((SQLException) cause);
+                }
+                throw cause;
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.pythondrops.testing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Storage used by {@link DemoCode}.
+ * {@link DatabaseWrapper} keeps the data in MySQL, {@link InMemoryDatabase} in the heap, with the
+ * same rules for suspended users and memberships and hidden channels.
+ */
+public interface Database extends AutoCloseable {
+
+    /** Largest page of messages a single read returns */
+    int MAX_PAGE_SIZE = 1000;
+
+    /**
+     * Get a channel.
+     * @param id UUID
+     * @return Channel a channel instance or null if not found
+     * @throws SQLException
+     */
+    Channel getChannel(UUID id) throws SQLException;
+
+    /**
+     * Update name, type and visibility of a channel.
+     * @param channel Channel new channel data
+     * @return boolean true if the channel exists
+     * @throws SQLException
+     */
+    boolean updateChannel(Channel channel) throws SQLException;
+
+    /**
+     * Return user data with all channels that he/she subscribe.
+     * Suspended users, users without channels, hidden channels and channels the user is suspended
+     * on are not returned.
+     * @param id UUID
+     * @return User or null
+     * @throws SQLException
+     */
+    User getUser(UUID id) throws SQLException;
+
+    /**
+     * Same as {@link #getUser(UUID)}, never stale: for permission checks, which must not accept a
+     * user just suspended or removed from a channel.
+     * @param id UUID
+     * @return User or null
+     * @throws SQLException
+     */
+    User getFreshUser(UUID id) throws SQLException;
+
+    /**
+     * Check if an user can post to a channel, with the same rules of {@link #getUser(UUID)}.
+     * @param userId UUID
+     * @param channelId UUID
+     * @return Membership
+     * @throws SQLException
+     */
+    Membership getMembership(UUID userId, UUID channelId) throws SQLException;
+
+    /**
+     * Store a message. The id is generated (time-ordered) unless the message already has one.
+     * @param message Message to store
+     * @return UUID the id of the stored message
+     * @throws SQLException
+     */
+    UUID postMessage(Message message) throws SQLException;
+
+    /**
+     * Store several messages, all or none.
+     * @param messages List of messages to store
+     * @return List of message UUIDs, in the same order as the messages
+     * @throws SQLException
+     */
+    List<UUID> postMessages(List<Message> messages) throws SQLException;
+
+    /**
+     * Read a page of the channel timeline, newest message first, keyset paginated on
+     * (createdTime, id).
+     * @param channelId UUID
+     * @param after Message last message of the previous page, or null for the first page
+     * @param limit int page size, from 1 to {@link #MAX_PAGE_SIZE}
+     * @return List of messages, shorter than limit on the last page
+     * @throws SQLException
+     */
+    List<Message> getChannelMessages(UUID channelId, Message after, int limit) throws SQLException;
+
+    /**
+     * Write all messages of a channel, oldest first, in the {@link MessageExport} format.
+     * The stream is flushed but not closed.
+     * @param channelId UUID
+     * @param out OutputStream to write to
+     * @return long number of exported messages
+     * @throws SQLException
+     * @throws IOException
+     */
+    long exportChannelMessages(UUID channelId, OutputStream out) throws SQLException, IOException;
+
+    /**
+     * Message count and last post time of a channel, read from a counter maintained on every post
+     * instead of counting the messages.
+     * @param channelId UUID
+     * @return ChannelStats, with no messages for unknown channels
+     * @throws SQLException
+     */
+    ChannelStats getChannelStats(UUID channelId) throws SQLException;
+
+    /**
+     * Latest messages of an author in all channels, newest first.
+     * @param authorId UUID
+     * @param limit int maximum number of messages, from 1 to {@link #MAX_PAGE_SIZE}
+     * @return List of messages
+     * @throws SQLException
+     */
+    List<Message> getAuthorMessages(UUID authorId, int limit) throws SQLException;
+
+    @Override
+    void close();
+}
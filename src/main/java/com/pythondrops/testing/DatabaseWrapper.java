@@ -1,43 +1,294 @@
 package com.pythondrops.testing;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.sql.DataSource;
-import javax.xml.crypto.Data;
 
 import com.mysql.cj.jdbc.MysqlDataSource;
 
-public class DatabaseWrapper {
+/**
+ * {@link Database} stored in MySQL (schema in database.sql).
+ */
+public class DatabaseWrapper implements Database {
 
-    private DataSource dataSource;
+    static final int BATCH_SIZE = 500;
+
+    private static final String INSERT_MESSAGE = "INSERT INTO MESSAGE (ID, AUTHOR, TITLE, CONTENT, CHANNEL_ID, CREATED_TIME) VALUES (?, ?, ?, ?, ?, NOW())";
+
+    private static final String UPDATE_CHANNEL_STATS = "INSERT INTO CHANNEL_STATS (CHANNEL_ID, MESSAGE_COUNT, LAST_MESSAGE_TIME) VALUES (?, ?, NOW()) ON DUPLICATE KEY UPDATE MESSAGE_COUNT = MESSAGE_COUNT + VALUES(MESSAGE_COUNT), LAST_MESSAGE_TIME = GREATEST(LAST_MESSAGE_TIME, VALUES(LAST_MESSAGE_TIME))";
+
+    // Newest first; walks the MESSAGE_CHANNEL_TIME index, which also holds the primary key (ID)
+    private static final String SELECT_CHANNEL_MESSAGES = "SELECT ID, AUTHOR, TITLE, CONTENT, CHANNEL_ID, CREATED_TIME FROM MESSAGE WHERE CHANNEL_ID = ? ORDER BY CREATED_TIME DESC, ID DESC LIMIT ?";
+    private static final String SELECT_CHANNEL_MESSAGES_AFTER = "SELECT ID, AUTHOR, TITLE, CONTENT, CHANNEL_ID, CREATED_TIME FROM MESSAGE WHERE CHANNEL_ID = ? AND CREATED_TIME <= ? AND (CREATED_TIME < ? OR ID < ?) ORDER BY CREATED_TIME DESC, ID DESC LIMIT ?";
+
+    private static final String EXPORT_CHANNEL_MESSAGES = "SELECT ID, AUTHOR, TITLE, CONTENT, CHANNEL_ID, CREATED_TIME FROM MESSAGE WHERE CHANNEL_ID = ? ORDER BY CREATED_TIME, ID";
+
+    // Walks the MESSAGE_AUTHOR_TIME index
+    private static final String SELECT_AUTHOR_MESSAGES = "SELECT ID, AUTHOR, TITLE, CONTENT, CHANNEL_ID, CREATED_TIME FROM MESSAGE WHERE AUTHOR = ? ORDER BY CREATED_TIME DESC, ID DESC LIMIT ?";
+
+    // Used when a channel moves to another shard, keeping ids, times and counters
+    private static final String SELECT_MESSAGES_TO_MOVE = "SELECT ID, AUTHOR, TITLE, CONTENT, CHANNEL_ID, CREATED_TIME FROM MESSAGE WHERE CHANNEL_ID = ? ORDER BY CREATED_TIME, ID LIMIT ?";
+    private static final String COPY_MESSAGE = "INSERT IGNORE INTO MESSAGE (ID, AUTHOR, TITLE, CONTENT, CHANNEL_ID, CREATED_TIME) VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String MERGE_CHANNEL_STATS = "INSERT INTO CHANNEL_STATS (CHANNEL_ID, MESSAGE_COUNT, LAST_MESSAGE_TIME) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE MESSAGE_COUNT = MESSAGE_COUNT + VALUES(MESSAGE_COUNT), LAST_MESSAGE_TIME = COALESCE(GREATEST(LAST_MESSAGE_TIME, VALUES(LAST_MESSAGE_TIME)), LAST_MESSAGE_TIME, VALUES(LAST_MESSAGE_TIME))";
+    private static final String DELETE_MOVED_CHANNEL_STATS = "DELETE FROM CHANNEL_STATS WHERE CHANNEL_ID = ? AND MESSAGE_COUNT <= 0";
+
+    private volatile DataSource dataSource;
+    private ConnectionPool pool;
+    private volatile StatementTracer tracer;
+    private volatile ExpiringCache<UUID, Channel> channelCache;
+    private ReplicaRouter replicas;
+    // Channels written in the last ReplicaConfig.maxLagMillis, read from the primary
+    private ExpiringCache<UUID, Boolean> recentWrites;
+    // MESSAGE and CHANNEL_STATS rows by channel, null when they live in the primary
+    private volatile ShardMap shardMap;
+    private Map<String, DataSource> shards;
+    // Where shard connections come from: the shards, behind the tracer once tracing is on
+    private Map<String, DataSource> shardSources;
+    private PoolConfig shardPoolConfig;
+    private ExecutorService shardReaders;
 
     public DatabaseWrapper() {
-        this.dataSource = getDataSource();
+        this(getDataSource(), new PoolConfig());
     }
 
     public DatabaseWrapper(DataSource dataSource) {
         this.dataSource = dataSource;
     }
 
-    private DataSource getDataSource() {
+    /**
+     * Uses a connection pool in front of the given data source.
+     * @param dataSource DataSource to get physical connections from
+     * @param poolConfig PoolConfig pool sizing and timeouts
+     */
+    public DatabaseWrapper(DataSource dataSource, PoolConfig poolConfig) {
+        this.pool = new ConnectionPool(dataSource, poolConfig);
+        this.dataSource = this.pool;
+    }
+
+    /**
+     * Reads that can be a little stale go to the replicas, everything else to the primary.
+     * @param primary DataSource for writes and fresh reads
+     * @param replicas List of replica DataSources
+     * @param replicaConfig ReplicaConfig replication lag and failover settings
+     */
+    public DatabaseWrapper(DataSource primary, List<DataSource> replicas, ReplicaConfig replicaConfig) {
+        this(primary);
+        this.replicas = new ReplicaRouter(replicas, replicaConfig);
+        this.recentWrites = new ExpiringCache<>(replicaConfig.recentWrites, replicaConfig.maxLagMillis);
+    }
+
+    /**
+     * Same as {@link #DatabaseWrapper(DataSource, List, ReplicaConfig)}, with a connection pool in
+     * front of the primary and of each replica.
+     */
+    public DatabaseWrapper(DataSource primary, List<DataSource> replicas, PoolConfig poolConfig, ReplicaConfig replicaConfig) {
+        this(primary, poolConfig);
+        List<DataSource> pools = new ArrayList<>(replicas.size());
+        for (DataSource replica : replicas) {
+            pools.add(new ConnectionPool(replica, poolConfig));
+        }
+        this.replicas = new ReplicaRouter(pools, replicaConfig);
+        this.recentWrites = new ExpiringCache<>(replicaConfig.recentWrites, replicaConfig.maxLagMillis);
+    }
+
+    /**
+     * Keeps channels, users and memberships in the primary and spreads MESSAGE and CHANNEL_STATS
+     * over the shards by channel, placed by a {@link ShardMap} with all the given shards. Every
+     * shard has the schema of database.sql.
+     * @param primary DataSource for channels, users and memberships
+     * @param shards Map of shard name to DataSource
+     */
+    public DatabaseWrapper(DataSource primary, Map<String, DataSource> shards) {
+        this(primary);
+        initShards(shards, null);
+    }
+
+    /**
+     * Same as {@link #DatabaseWrapper(DataSource, Map)}, with a connection pool in front of the
+     * primary and of each shard, also of shards added later with {@link #addShard}.
+     */
+    public DatabaseWrapper(DataSource primary, Map<String, DataSource> shards, PoolConfig poolConfig) {
+        this(primary, poolConfig);
+        initShards(shards, poolConfig);
+    }
+
+    private void initShards(Map<String, DataSource> shards, PoolConfig poolConfig) {
+        this.shards = new ConcurrentHashMap<>();
+        this.shardSources = new ConcurrentHashMap<>();
+        this.shardPoolConfig = poolConfig;
+        for (Map.Entry<String, DataSource> shard : shards.entrySet()) {
+            addShard(shard.getKey(), shard.getValue());
+        }
+        this.shardMap = new ShardMap(new ArrayList<>(shards.keySet()));
+        this.shardReaders = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "shard-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static DataSource getDataSource() {
         MysqlDataSource dataSource = new MysqlDataSource();
         dataSource.setUser("root");
         dataSource.setPassword("my-secret-pw");
         dataSource.setServerName("localhost");
         dataSource.setDatabaseName("TESTDB");
+        try {
+            // Lets the driver send a JDBC batch as multi-row INSERT statements
+            dataSource.setRewriteBatchedStatements(true);
+            // Statements are parsed once by the server; ConnectionPool keeps them open per connection
+            dataSource.setUseServerPrepStmts(true);
+            dataSource.setCachePrepStmts(true);
+            dataSource.setPrepStmtCacheSize(256);
+            dataSource.setPrepStmtCacheSqlLimit(2048);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
         return dataSource;
     }
 
-    private Connection getConnection(DataSource dataSource) throws SQLException {
-        Connection conn = dataSource.getConnection();
-        return conn;
+    private Connection getConnection() throws SQLException {
+        return this.dataSource.getConnection();
+    }
+
+    /**
+     * Connection for a read that may lag behind the primary, unless the channel was just written
+     * by this wrapper (read-your-writes) or no replica is available.
+     */
+    private Connection getReadConnection(UUID channelId) throws SQLException {
+        if (this.replicas != null && this.recentWrites.get(channelId) != null) {
+            return getConnection();
+        }
+        return getReplicaConnection();
+    }
+
+    /**
+     * Connection for a read that may lag behind the primary and is not about a channel: a replica,
+     * or the primary when none is available.
+     */
+    private Connection getReplicaConnection() throws SQLException {
+        Connection connection = this.replicas == null ? null : this.replicas.getConnection();
+        return connection != null ? connection : getConnection();
+    }
+
+    private void markWritten(Collection<UUID> channelIds) {
+        if (this.recentWrites != null) {
+            for (UUID channelId : channelIds) {
+                this.recentWrites.put(channelId, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * Connection to the shard holding the messages of a channel, or to the primary when not sharded.
+     */
+    private Connection getMessageConnection(UUID channelId) throws SQLException {
+        ShardMap map = this.shardMap;
+        return map == null ? getConnection() : shard(map.shardFor(channelId)).getConnection();
+    }
+
+    /**
+     * Same as {@link #getMessageConnection}, for reads that may go to a replica when not sharded.
+     */
+    private Connection getMessageReadConnection(UUID channelId) throws SQLException {
+        ShardMap map = this.shardMap;
+        return map == null ? getReadConnection(channelId) : shard(map.shardFor(channelId)).getConnection();
+    }
+
+    private DataSource shard(String name) {
+        return this.shardSources.get(name);
+    }
+
+    /**
+     * @return ReplicaRouter replica usage, or null without replicas
+     */
+    public ReplicaRouter getReplicaRouter() {
+        return this.replicas;
+    }
+
+    /**
+     * Connection pool usage.
+     * @return PoolStats pool statistics or null if this wrapper does not own a pool
+     */
+    public PoolStats getPoolStats() {
+        return this.pool == null ? null : this.pool.getStats();
+    }
+
+    /**
+     * Trace every statement from now on, of the primary, the replicas and the shards: timings,
+     * binds and rows, slow statements logged.
+     * Connection acquire time includes waiting for the pool, if this wrapper owns one.
+     * Calling it again keeps the first tracer and its settings.
+     * @param traceConfig TraceConfig slow statement threshold, sampling and buffer size
+     * @return StatementTracer to read the recent traces from
+     */
+    public synchronized StatementTracer enableTracing(TraceConfig traceConfig) {
+        if (this.tracer == null) {
+            this.tracer = new StatementTracer(this.dataSource, traceConfig);
+            this.dataSource = this.tracer;
+            if (this.replicas != null) {
+                this.replicas.trace(this.tracer);
+            }
+            if (this.shards != null) {
+                for (Map.Entry<String, DataSource> shard : this.shards.entrySet()) {
+                    this.shardSources.put(shard.getKey(), this.tracer.trace(shard.getValue()));
+                }
+            }
+        }
+        return this.tracer;
+    }
+
+    /**
+     * @return StatementTracer or null if tracing is not enabled
+     */
+    public StatementTracer getStatementTracer() {
+        return this.tracer;
+    }
+
+    /**
+     * Keep channels read by {@link #getChannel(UUID)} in memory.
+     * Channels changed by {@link #updateChannel(Channel)} are dropped from the cache right away;
+     * changes made elsewhere must be reported with {@link #invalidateChannel(UUID)} or wait for the TTL.
+     * @param maxSize int maximum number of cached channels
+     * @param ttlMillis long how long a channel is kept
+     */
+    public void enableChannelCache(int maxSize, long ttlMillis) {
+        this.channelCache = new ExpiringCache<>(maxSize, ttlMillis);
+    }
+
+    /**
+     * @return CacheStats channel cache statistics or null if the cache is not enabled
+     */
+    public CacheStats getChannelCacheStats() {
+        return this.channelCache == null ? null : this.channelCache.getStats();
+    }
+
+    public void invalidateChannel(UUID id) {
+        if (this.channelCache != null) {
+            this.channelCache.invalidate(id);
+        }
     }
 
     /**
@@ -45,100 +296,715 @@ public class DatabaseWrapper {
      * @param id String Channel UUID
      * @return Channel a channel instance or null if not found
      */
+    @Override
     public Channel getChannel(UUID id) throws SQLException {
-        Channel channel = new Channel();
-        Connection conn = this.dataSource.getConnection();
-        byte[] uuidBytes = new byte[16];
-        ByteBuffer.wrap(uuidBytes).order(ByteOrder.BIG_ENDIAN).putLong(id.getMostSignificantBits())
-          .putLong(id.getLeastSignificantBits());
-        PreparedStatement query = conn.prepareStatement("SELECT * FROM CHANNEL WHERE ID = ?");
-        query.setBytes(1, uuidBytes);
-        ResultSet rs = query.executeQuery();
-        if (rs.next()) {
-            byte[] channelIdBytes = rs.getBytes( "id" );
-            channel.id = UUID.nameUUIDFromBytes( channelIdBytes );
-            channel.hidden = rs.getBoolean("hidden");
-            channel.name = rs.getString("name");
-            return channel;
-        } else {
-            return null;
+        ExpiringCache<UUID, Channel> cache = this.channelCache;
+        long stamp = 0;
+        if (cache != null) {
+            Channel cached = cache.get(id);
+            if (cached != null) {
+                return copy(cached);
+            }
+            // A read racing with updateChannel must not put the old channel back after the invalidation
+            stamp = cache.stamp(id);
+        }
+        byte[] uuidBytes = UuidCodec.toBytes(id);
+        try (Connection conn = getReadConnection(id);
+             PreparedStatement query = conn.prepareStatement("SELECT ID, NAME, TYPE, HIDDEN FROM CHANNEL WHERE ID = ?")) {
+            query.setBytes(1, uuidBytes);
+            try (ResultSet rs = query.executeQuery()) {
+                if (rs.next()) {
+                    Channel channel = new Channel();
+                    channel.id = UuidCodec.fromBytes(rs.getBytes("ID"));
+                    channel.name = rs.getString("NAME");
+                    channel.type = rs.getInt("TYPE");
+                    channel.hidden = rs.getBoolean("HIDDEN");
+                    if (cache != null) {
+                        cache.put(id, copy(channel), stamp);
+                    }
+                    return channel;
+                } else {
+                    return null;
+                }
+            }
         }
     }
 
+    /**
+     * Update name, type and visibility of a channel.
+     * @param channel Channel new channel data
+     * @return boolean true if the channel exists
+     * @throws SQLException
+     */
+    @Override
+    public boolean updateChannel(Channel channel) throws SQLException {
+        byte[] uuidBytes = UuidCodec.toBytes(channel.id);
+        try (Connection conn = getConnection();
+             PreparedStatement query = conn.prepareStatement("UPDATE CHANNEL SET NAME = ?, TYPE = ?, HIDDEN = ? WHERE ID = ?")) {
+            query.setString(1, channel.name);
+            query.setInt(2, channel.type);
+            query.setBoolean(3, channel.hidden);
+            query.setBytes(4, uuidBytes);
+            return query.executeUpdate() > 0;
+        } finally {
+            markWritten(List.of(channel.id));
+            invalidateChannel(channel.id);
+        }
+    }
+
+    private static Channel copy(Channel channel) {
+        Channel copy = new Channel();
+        copy.id = channel.id;
+        copy.name = channel.name;
+        copy.type = channel.type;
+        copy.hidden = channel.hidden;
+        return copy;
+    }
+
     /**
      * Return user data with all channels that he/she subscribe.
      * Note:
      * 1) Suspended users will not be returned;
      * 2) Hidden channels will not be returned;
      * 3) If an user is suspended on a channel, this channel will not be returned;
+     * Read from a replica when there is one; permission checks use {@link #getFreshUser(UUID)}.
      * @param id
      * @return
      * @throws SQLException
      */
+    @Override
     public User getUser(UUID id) throws SQLException {
-        User user = null;
-        Connection conn = this.dataSource.getConnection();
-        byte[] uuidBytes = new byte[16];
-        ByteBuffer.wrap(uuidBytes).order(ByteOrder.BIG_ENDIAN).putLong(id.getMostSignificantBits())
-          .putLong(id.getLeastSignificantBits());
-        PreparedStatement query = conn.prepareStatement("SELECT BIN_TO_UUID(U.ID) AS USER_ID, U.PII_CONTENT_LINK, U.SUSPENDED, BIN_TO_UUID(UC.CHANNEL_ID) AS CHANNEL_ID, UC.SUSPENDED as CHANNEL_SUSPENDED, C.HIDDEN FROM USER U INNER JOIN USER_CHANNEL UC ON U.ID = UC.USER_ID  INNER JOIN CHANNEL C ON UC.CHANNEL_ID = C.ID WHERE U.ID = ?");
-        query.setBytes(1, uuidBytes);
-        ResultSet rs = query.executeQuery();
+        try (Connection conn = getReplicaConnection()) {
+            return readUser(conn, id);
+        }
+    }
+
+    /**
+     * Same as {@link #getUser(UUID)}, always read from the primary.
+     */
+    @Override
+    public User getFreshUser(UUID id) throws SQLException {
+        try (Connection conn = getConnection()) {
+            return readUser(conn, id);
+        }
+    }
 
-        while (rs.next()) {
-            if (user == null) {
-                boolean userSuspended = rs.getBoolean("SUSPENDED");
-                if (userSuspended) {
-                    break;
+    private static User readUser(Connection conn, UUID id) throws SQLException {
+        User user = null;
+        ChannelSet channels = null;
+        byte[] uuidBytes = UuidCodec.toBytes(id);
+        try (PreparedStatement query = conn.prepareStatement("SELECT U.PII_CONTENT_LINK, U.SUSPENDED, UC.CHANNEL_ID, UC.SUSPENDED as CHANNEL_SUSPENDED, C.HIDDEN FROM USER U INNER JOIN USER_CHANNEL UC ON U.ID = UC.USER_ID  INNER JOIN CHANNEL C ON UC.CHANNEL_ID = C.ID WHERE U.ID = ?")) {
+            query.setBytes(1, uuidBytes);
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    if (user == null) {
+                        boolean userSuspended = rs.getBoolean("SUSPENDED");
+                        if (userSuspended) {
+                            break;
+                        }
+                        user = new User();
+                        user.id = id;
+                        user.suspended = false; // User is not suspended
+                        user.piiContentLink = rs.getString("pii_content_link");
+                        channels = new ChannelSet();
+                        user.channels = channels;
+                    }
+                    boolean channelIsHidden = rs.getBoolean("HIDDEN");
+                    if (channelIsHidden) {
+                        continue;
+                    }
+                    boolean channelSuspended = rs.getBoolean("CHANNEL_SUSPENDED");
+                    if (!channelSuspended) {
+                        channels.add(rs.getBytes("CHANNEL_ID"));
+                    }
                 }
-                user = new User();
-                user.id = UUID.fromString(rs.getString( "USER_ID" ));
-                user.suspended = false; // User is not suspended
-                user.piiContentLink = rs.getString("pii_content_link");
-                user.channels = new HashSet<UUID>();
-            }
-            boolean channelIsHidden = rs.getBoolean("HIDDEN");
-            if (channelIsHidden) {
-                continue;
-            }
-            UUID channelId = UUID.fromString(rs.getString("CHANNEL_ID"));
-            boolean channelSuspended = rs.getBoolean("CHANNEL_SUSPENDED");
-            if (!channelSuspended) {
-                user.channels.add(channelId);
             }
         }
 
         return user;
     }
 
+    /**
+     * Check if an user can post to a channel, reading only the USER, USER_CHANNEL and CHANNEL rows
+     * of this pair, by primary key.
+     * The same rules of {@link #getUser(UUID)} apply.
+     * @param userId UUID
+     * @param channelId UUID
+     * @return Membership
+     * @throws SQLException
+     */
+    @Override
+    public Membership getMembership(UUID userId, UUID channelId) throws SQLException {
+        byte[] userUuidBytes = UuidCodec.toBytes(userId);
+        byte[] channelUuidBytes = UuidCodec.toBytes(channelId);
+        try (Connection conn = getConnection();
+             PreparedStatement query = conn.prepareStatement("SELECT U.SUSPENDED, C.ID AS CHANNEL_ID, UC.SUSPENDED as CHANNEL_SUSPENDED, C.HIDDEN FROM USER U LEFT JOIN USER_CHANNEL UC ON UC.USER_ID = U.ID AND UC.CHANNEL_ID = ? LEFT JOIN CHANNEL C ON UC.CHANNEL_ID = C.ID WHERE U.ID = ?")) {
+            query.setBytes(1, channelUuidBytes);
+            query.setBytes(2, userUuidBytes);
+            try (ResultSet rs = query.executeQuery()) {
+                if (!rs.next() || rs.getBoolean("SUSPENDED")) {
+                    return Membership.USER_NOT_ALLOWED;
+                }
+                if (rs.getBytes("CHANNEL_ID") == null || rs.getBoolean("CHANNEL_SUSPENDED") || rs.getBoolean("HIDDEN")) {
+                    return Membership.CHANNEL_NOT_AVAILABLE;
+                }
+                return Membership.ALLOWED;
+            }
+        }
+    }
+
+    /**
+     * Insert a message in a single statement.
+     * The message id is generated here (time-ordered) unless the message already has one.
+     * @param message Message to store
+     * @return UUID the id of the stored message
+     * @throws SQLException
+     */
+    @Override
     public UUID postMessage(Message message) throws SQLException {
-        Connection conn = this.dataSource.getConnection();
-        byte[] authorUuidBytes = new byte[16];
-        ByteBuffer.wrap(authorUuidBytes)
-          .order(ByteOrder.BIG_ENDIAN)
-          .putLong(message.author.getMostSignificantBits())
-          .putLong(message.author.getLeastSignificantBits());
-        PreparedStatement query = conn.prepareStatement("INSERT INTO MESSAGE (AUTHOR, TITLE, CONTENT, CHANNEL_ID, CREATED_TIME) VALUES (?, ?, ?, ?, NOW());");
-        query.setBytes(1, authorUuidBytes);
-        query.setString(2, message.title);
-        query.setString(3, message.content);
-        byte[] channelUuidBytes = new byte[16];
-        ByteBuffer.wrap(channelUuidBytes)
-          .order(ByteOrder.BIG_ENDIAN)
-          .putLong(message.channelId.getMostSignificantBits())
-          .putLong(message.channelId.getLeastSignificantBits());
-        query.setBytes(4, channelUuidBytes);
-        query.execute();
-
-        PreparedStatement query2 = conn.prepareStatement("SELECT BIN_TO_UUID(ID) AS MESSAGE_ID, MAX(CREATED_TIME) AS CREATED FROM MESSAGE WHERE AUTHOR=? GROUP BY ID;");
-        query2.setBytes(1, authorUuidBytes);
-        ResultSet rs = query2.executeQuery();
-        UUID messageId = null;
-        if (rs.next()) {
-            messageId = UUID.fromString(rs.getString( "MESSAGE_ID" ));
+        UUID messageId = message.id != null ? message.id : UuidGenerator.timeOrdered();
+        try (Connection conn = getMessageConnection(message.channelId)) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement query = conn.prepareStatement(INSERT_MESSAGE)) {
+                bindMessage(query, messageId, message);
+                query.execute();
+                updateChannelStats(conn, Map.of(message.channelId, 1));
+                conn.commit();
+                markWritten(List.of(message.channelId));
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
         }
         return messageId;
     }
 
+    /**
+     * Insert several messages in one transaction, sending them in JDBC batches of {@link #BATCH_SIZE}.
+     * Either all messages are stored or none.
+     * When sharded there is one transaction per shard, and all of them are written before the
+     * first commit: a failed insert stores nothing, a failed commit keeps the shards committed
+     * before it.
+     * @param messages List of messages to store
+     * @return List of message UUIDs, in the same order as the messages
+     * @throws SQLException
+     */
+    @Override
+    public List<UUID> postMessages(List<Message> messages) throws SQLException {
+        List<UUID> messageIds = new ArrayList<>(messages.size());
+        if (messages.isEmpty()) {
+            return messageIds;
+        }
+        for (Message message : messages) {
+            messageIds.add(message.id != null ? message.id : UuidGenerator.timeOrdered());
+        }
+        ShardMap map = this.shardMap;
+        // Positions of the messages of each shard; sorted so shard connections are taken in the same order
+        Map<String, List<Integer>> positionsByShard = new TreeMap<>();
+        for (int position = 0; position < messages.size(); position++) {
+            String shard = map == null ? "" : map.shardFor(messages.get(position).channelId);
+            positionsByShard.computeIfAbsent(shard, k -> new ArrayList<>()).add(position);
+        }
+
+        List<Connection> connections = new ArrayList<>(positionsByShard.size());
+        int committed = 0;
+        try {
+            for (Map.Entry<String, List<Integer>> positions : positionsByShard.entrySet()) {
+                Connection conn = map == null ? getConnection() : shard(positions.getKey()).getConnection();
+                connections.add(conn);
+                conn.setAutoCommit(false);
+                insertMessages(conn, messages, messageIds, positions.getValue());
+            }
+            for (Connection conn : connections) {
+                conn.commit();
+                committed++;
+            }
+        } catch (SQLException | RuntimeException e) {
+            for (int i = committed; i < connections.size(); i++) {
+                try {
+                    connections.get(i).rollback();
+                } catch (SQLException rollbackError) {
+                    e.addSuppressed(rollbackError);
+                }
+            }
+            throw e;
+        } finally {
+            for (Connection conn : connections) {
+                try (conn) {
+                    conn.setAutoCommit(true);
+                } catch (SQLException e) {
+                    // Closed anyway, the pool discards connections it cannot reset
+                }
+            }
+        }
+
+        Set<UUID> channelIds = new HashSet<>();
+        for (Message message : messages) {
+            channelIds.add(message.channelId);
+        }
+        markWritten(channelIds);
+        return messageIds;
+    }
+
+    // Sends the messages at the given positions in batches, then adds them to the channel counters
+    private void insertMessages(Connection conn, List<Message> messages, List<UUID> messageIds, List<Integer> positions) throws SQLException {
+        try (PreparedStatement query = conn.prepareStatement(INSERT_MESSAGE)) {
+            // Sorted so concurrent transactions lock CHANNEL_STATS rows in the same order
+            Map<UUID, Integer> postsByChannel = new TreeMap<>();
+            int pending = 0;
+            for (int position : positions) {
+                Message message = messages.get(position);
+                postsByChannel.merge(message.channelId, 1, Integer::sum);
+                bindMessage(query, messageIds.get(position), message);
+                query.addBatch();
+                if (++pending == BATCH_SIZE) {
+                    query.executeBatch();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                query.executeBatch();
+            }
+            updateChannelStats(conn, postsByChannel);
+        }
+    }
+
+    /**
+     * Read a page of the channel timeline, newest message first.
+     * Pages are keyset paginated on (CREATED_TIME, ID): pass the last message of the previous page
+     * to get the next one. Every page costs the same, no matter how deep in the timeline it is,
+     * and messages posted in the meantime do not shift the following pages.
+     * Rows are streamed from the server as they are read, not buffered by the driver first.
+     * @param channelId UUID
+     * @param after Message last message of the previous page (id and createdTime are used), or null for the first page
+     * @param limit int page size, from 1 to {@link #MAX_PAGE_SIZE}
+     * @return List of messages, shorter than limit on the last page
+     * @throws SQLException
+     */
+    @Override
+    public List<Message> getChannelMessages(UUID channelId, Message after, int limit) throws SQLException {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("Page size must be between 1 and " + MAX_PAGE_SIZE);
+        }
+        if (after != null && (after.id == null || after.createdTime == null)) {
+            throw new IllegalArgumentException("Previous page message must have id and createdTime");
+        }
+        byte[] channelUuidBytes = UuidCodec.toBytes(channelId);
+        List<Message> messages = new ArrayList<>(limit);
+        try (Connection conn = getMessageReadConnection(channelId);
+             PreparedStatement query = conn.prepareStatement(after == null ? SELECT_CHANNEL_MESSAGES : SELECT_CHANNEL_MESSAGES_AFTER)) {
+            // Connector/J streams the result set row by row instead of reading it all into memory
+            query.setFetchSize(Integer.MIN_VALUE);
+            query.setBytes(1, channelUuidBytes);
+            if (after == null) {
+                query.setInt(2, limit);
+            } else {
+                byte[] afterUuidBytes = UuidCodec.toBytes(after.id);
+                Timestamp afterTime = new Timestamp(after.createdTime.getTime());
+                query.setTimestamp(2, afterTime);
+                query.setTimestamp(3, afterTime);
+                query.setBytes(4, afterUuidBytes);
+                query.setInt(5, limit);
+            }
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    messages.add(readMessage(rs));
+                }
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Write all messages of a channel, oldest first, in the {@link MessageExport} format.
+     * Rows are streamed from the server one at a time and written as they arrive, so memory use
+     * does not depend on the channel size. The connection is held until the export ends; the
+     * driver raises net_write_timeout for streaming results by itself.
+     * The stream is flushed but not closed.
+     * @param channelId UUID
+     * @param out OutputStream to write to
+     * @return long number of exported messages
+     * @throws SQLException
+     * @throws IOException when writing to out fails, the export is then incomplete
+     */
+    @Override
+    public long exportChannelMessages(UUID channelId, OutputStream out) throws SQLException, IOException {
+        byte[] channelUuidBytes = UuidCodec.toBytes(channelId);
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        long count = 0;
+        try (Connection conn = getMessageReadConnection(channelId);
+             PreparedStatement query = conn.prepareStatement(EXPORT_CHANNEL_MESSAGES, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            query.setFetchSize(Integer.MIN_VALUE);
+            query.setBytes(1, channelUuidBytes);
+            try (ResultSet rs = query.executeQuery()) {
+                MessageExport.writeHeader(data);
+                while (rs.next()) {
+                    Timestamp createdTime = rs.getTimestamp("CREATED_TIME");
+                    MessageExport.writeRecord(data, rs.getBytes("ID"), rs.getBytes("AUTHOR"), rs.getBytes("CHANNEL_ID"),
+                      createdTime == null ? 0 : createdTime.getTime(), rs.getString("TITLE"), rs.getString("CONTENT"));
+                    count++;
+                }
+                MessageExport.writeEnd(data);
+            }
+        }
+        data.flush();
+        return count;
+    }
+
+    /**
+     * Add posts to the channel counters, in the caller's transaction.
+     * The counter rows stay locked until commit, so this runs right before it.
+     */
+    private void updateChannelStats(Connection conn, Map<UUID, Integer> postsByChannel) throws SQLException {
+        try (PreparedStatement query = conn.prepareStatement(UPDATE_CHANNEL_STATS)) {
+            for (Map.Entry<UUID, Integer> posts : postsByChannel.entrySet()) {
+                byte[] channelUuidBytes = UuidCodec.toBytes(posts.getKey());
+                query.setBytes(1, channelUuidBytes);
+                query.setInt(2, posts.getValue());
+                if (postsByChannel.size() == 1) {
+                    query.executeUpdate();
+                } else {
+                    query.addBatch();
+                }
+            }
+            if (postsByChannel.size() > 1) {
+                query.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * Message count and last post time of a channel, a primary key read of CHANNEL_STATS.
+     * @param channelId UUID
+     * @return ChannelStats, with no messages for unknown channels
+     * @throws SQLException
+     */
+    @Override
+    public ChannelStats getChannelStats(UUID channelId) throws SQLException {
+        byte[] channelUuidBytes = UuidCodec.toBytes(channelId);
+        ChannelStats stats = new ChannelStats();
+        stats.channelId = channelId;
+        try (Connection conn = getMessageReadConnection(channelId);
+             PreparedStatement query = conn.prepareStatement("SELECT MESSAGE_COUNT, LAST_MESSAGE_TIME FROM CHANNEL_STATS WHERE CHANNEL_ID = ?")) {
+            query.setBytes(1, channelUuidBytes);
+            try (ResultSet rs = query.executeQuery()) {
+                if (rs.next()) {
+                    stats.messageCount = rs.getLong("MESSAGE_COUNT");
+                    stats.lastMessageTime = rs.getTimestamp("LAST_MESSAGE_TIME");
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Latest messages of an author in all channels, newest first. When sharded every shard is
+     * queried in parallel for its newest limit messages and the results are merged.
+     * @param authorId UUID
+     * @param limit int maximum number of messages, from 1 to {@link #MAX_PAGE_SIZE}
+     * @return List of messages
+     * @throws SQLException
+     */
+    @Override
+    public List<Message> getAuthorMessages(UUID authorId, int limit) throws SQLException {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("Page size must be between 1 and " + MAX_PAGE_SIZE);
+        }
+        ShardMap map = this.shardMap;
+        if (map == null) {
+            try (Connection conn = getConnection()) {
+                return selectAuthorMessages(conn, authorId, limit);
+            }
+        }
+
+        List<Future<List<Message>>> results = new ArrayList<>(map.getShards().size());
+        for (String shard : map.getShards()) {
+            DataSource shardSource = shard(shard);
+            results.add(this.shardReaders.submit(() -> {
+                try (Connection conn = shardSource.getConnection()) {
+                    return selectAuthorMessages(conn, authorId, limit);
+                }
+            }));
+        }
+        List<Message> messages = new ArrayList<>();
+        // A channel being moved by rebalance can be in two shards for a moment
+        Set<UUID> messageIds = new HashSet<>();
+        try {
+            for (Future<List<Message>> result : results) {
+                for (Message message : result.get()) {
+                    if (messageIds.add(message.id)) {
+                        messages.add(message);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while reading shards", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Shard read failed", e.getCause());
+        } finally {
+            for (Future<List<Message>> result : results) {
+                result.cancel(true);
+            }
+        }
+        messages.sort((a, b) -> Message.compare(b, a));
+        return new ArrayList<>(messages.subList(0, Math.min(limit, messages.size())));
+    }
+
+    private List<Message> selectAuthorMessages(Connection conn, UUID authorId, int limit) throws SQLException {
+        List<Message> messages = new ArrayList<>(limit);
+        try (PreparedStatement query = conn.prepareStatement(SELECT_AUTHOR_MESSAGES)) {
+            query.setBytes(1, UuidCodec.toBytes(authorId));
+            query.setInt(2, limit);
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    messages.add(readMessage(rs));
+                }
+            }
+        }
+        return messages;
+    }
+
+    private static Message readMessage(ResultSet rs) throws SQLException {
+        Message message = new Message();
+        message.id = UuidCodec.fromBytes(rs.getBytes("ID"));
+        message.author = UuidCodec.fromBytes(rs.getBytes("AUTHOR"));
+        message.title = rs.getString("TITLE");
+        message.content = rs.getString("CONTENT");
+        message.channelId = UuidCodec.fromBytes(rs.getBytes("CHANNEL_ID"));
+        message.createdTime = rs.getTimestamp("CREATED_TIME");
+        return message;
+    }
+
+    /**
+     * Register a shard, without placing channels on it yet; see {@link #rebalance}.
+     * @param name String shard name
+     * @param dataSource DataSource of the shard, behind a pool if this wrapper pools its connections
+     */
+    public synchronized void addShard(String name, DataSource dataSource) {
+        if (this.shards == null) {
+            throw new IllegalStateException("Messages are not sharded");
+        }
+        DataSource shard = this.shardPoolConfig != null ? new ConnectionPool(dataSource, this.shardPoolConfig) : dataSource;
+        if (this.shards.putIfAbsent(name, shard) != null) {
+            if (shard instanceof ConnectionPool) {
+                ((ConnectionPool) shard).close();
+            }
+            throw new IllegalArgumentException("Shard " + name + " already exists");
+        }
+        this.shardSources.put(name, this.tracer != null ? this.tracer.trace(shard) : shard);
+    }
+
+    /**
+     * @return ShardMap in use, or null when messages are not sharded
+     */
+    public ShardMap getShardMap() {
+        return this.shardMap;
+    }
+
+    /**
+     * Same as {@link #rebalance(ShardMap, ShardMap)} from the shard map in use.
+     */
+    public int rebalance(ShardMap target) throws SQLException {
+        ShardMap current = this.shardMap;
+        if (current == null) {
+            throw new IllegalStateException("Messages are not sharded");
+        }
+        return rebalance(current, target);
+    }
+
+    /**
+     * Switch to another shard map and move the messages and counters of every channel placed
+     * differently by the two maps, one channel per transaction on each side.
+     * The map is switched first, so new posts already go to the new shards while older messages
+     * are copied; until a channel is copied its timeline on the new shard is incomplete. A post
+     * that read the old map just before the switch can still land on the old shard: the move of
+     * its channel goes on until the old shard has no messages of it left, and a post that lands
+     * after that stays there until this is called again with the same maps.
+     * Moving a channel again is harmless, so after a failure call this again with the same maps
+     * to finish the move.
+     * @param previous ShardMap the messages were placed with
+     * @param target ShardMap whose shards were all registered
+     * @return int number of channels whose shard changed
+     * @throws SQLException the target map stays in use; the channels not moved yet keep their older
+     *   messages on the previous shards until this is called again with the same maps
+     */
+    public synchronized int rebalance(ShardMap previous, ShardMap target) throws SQLException {
+        if (this.shardMap == null) {
+            throw new IllegalStateException("Messages are not sharded");
+        }
+        for (ShardMap map : List.of(previous, target)) {
+            for (String shard : map.getShards()) {
+                if (!this.shards.containsKey(shard)) {
+                    throw new IllegalArgumentException("Unknown shard " + shard);
+                }
+            }
+        }
+        List<UUID> channelIds = new ArrayList<>();
+        try (Connection conn = getConnection();
+             PreparedStatement query = conn.prepareStatement("SELECT ID FROM CHANNEL")) {
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    channelIds.add(UuidCodec.fromBytes(rs.getBytes("ID")));
+                }
+            }
+        }
+
+        this.shardMap = target;
+        int moved = 0;
+        for (UUID channelId : channelIds) {
+            String from = previous.shardFor(channelId);
+            String to = target.shardFor(channelId);
+            if (!from.equals(to)) {
+                moveChannel(channelId, shard(from), shard(to));
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    /**
+     * Moves the messages of a channel in rounds of at most {@link #BATCH_SIZE}, oldest first, until
+     * a round finds none left on the source: posts that still reached the source during the move
+     * are picked up by a later round. Each round commits the copies on the target before deleting
+     * from the source only the ids it copied, and both counters change by the rows really moved.
+     * Messages already on the target are skipped, so a move interrupted after the target commit can
+     * be run again.
+     */
+    private void moveChannel(UUID channelId, DataSource from, DataSource to) throws SQLException {
+        byte[] channelUuidBytes = UuidCodec.toBytes(channelId);
+        try (Connection source = from.getConnection();
+             Connection target = to.getConnection()) {
+            while (moveMessages(channelUuidBytes, source, target) > 0) {
+                // Next round
+            }
+            // Posts add to the counter under its row lock, so a counter at 0 has no messages left
+            try (PreparedStatement deleteStats = source.prepareStatement(DELETE_MOVED_CHANNEL_STATS)) {
+                deleteStats.setBytes(1, channelUuidBytes);
+                deleteStats.executeUpdate();
+            }
+        }
+    }
+
+    // One round of moveChannel, returns the number of messages moved
+    private int moveMessages(byte[] channelUuidBytes, Connection source, Connection target) throws SQLException {
+        List<Message> messages = new ArrayList<>(BATCH_SIZE);
+        try (PreparedStatement select = source.prepareStatement(SELECT_MESSAGES_TO_MOVE)) {
+            select.setBytes(1, channelUuidBytes);
+            select.setInt(2, BATCH_SIZE);
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    messages.add(readMessage(rs));
+                }
+            }
+        }
+        if (messages.isEmpty()) {
+            return 0;
+        }
+        Timestamp lastMessageTime = null;
+        for (Message message : messages) {
+            if (message.createdTime != null && (lastMessageTime == null || message.createdTime.after(lastMessageTime))) {
+                lastMessageTime = (Timestamp) message.createdTime;
+            }
+        }
+
+        source.setAutoCommit(false);
+        target.setAutoCommit(false);
+        try {
+            // Counted in the target transaction, which sees its own inserts but not concurrent posts
+            long before = countMessages(target, messages);
+            try (PreparedStatement insert = target.prepareStatement(COPY_MESSAGE)) {
+                for (Message message : messages) {
+                    insert.setBytes(1, UuidCodec.toBytes(message.id));
+                    insert.setBytes(2, message.author == null ? null : UuidCodec.toBytes(message.author));
+                    insert.setString(3, message.title);
+                    insert.setString(4, message.content);
+                    insert.setBytes(5, channelUuidBytes);
+                    insert.setTimestamp(6, (Timestamp) message.createdTime);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+            long copied = countMessages(target, messages) - before;
+            if (copied > 0) {
+                try (PreparedStatement merge = target.prepareStatement(MERGE_CHANNEL_STATS)) {
+                    merge.setBytes(1, channelUuidBytes);
+                    merge.setLong(2, copied);
+                    merge.setTimestamp(3, lastMessageTime);
+                    merge.executeUpdate();
+                }
+            }
+            target.commit();
+
+            try (PreparedStatement deleteMessage = source.prepareStatement("DELETE FROM MESSAGE WHERE ID = ?");
+                 PreparedStatement stats = source.prepareStatement("UPDATE CHANNEL_STATS SET MESSAGE_COUNT = MESSAGE_COUNT - ? WHERE CHANNEL_ID = ?")) {
+                for (Message message : messages) {
+                    deleteMessage.setBytes(1, UuidCodec.toBytes(message.id));
+                    deleteMessage.addBatch();
+                }
+                deleteMessage.executeBatch();
+                stats.setLong(1, messages.size());
+                stats.setBytes(2, channelUuidBytes);
+                stats.executeUpdate();
+            }
+            source.commit();
+        } catch (SQLException | RuntimeException e) {
+            target.rollback();
+            source.rollback();
+            throw e;
+        } finally {
+            source.setAutoCommit(true);
+            target.setAutoCommit(true);
+        }
+        return messages.size();
+    }
+
+    // Messages of the list already stored, by primary key
+    private static long countMessages(Connection conn, List<Message> messages) throws SQLException {
+        String sql = "SELECT COUNT(*) FROM MESSAGE WHERE ID IN (" + String.join(", ", Collections.nCopies(messages.size(), "?")) + ")";
+        try (PreparedStatement query = conn.prepareStatement(sql)) {
+            for (int i = 0; i < messages.size(); i++) {
+                query.setBytes(i + 1, UuidCodec.toBytes(messages.get(i).id));
+            }
+            try (ResultSet rs = query.executeQuery()) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    private void bindMessage(PreparedStatement query, UUID messageId, Message message) throws SQLException {
+        query.setBytes(1, UuidCodec.toBytes(messageId));
+        query.setBytes(2, UuidCodec.toBytes(message.author));
+        query.setString(3, message.title);
+        query.setString(4, message.content);
+        query.setBytes(5, UuidCodec.toBytes(message.channelId));
+    }
+
+    /**
+     * Closes the connection pools this wrapper owns, of the primary, replicas and shards.
+     */
+    @Override
+    public void close() {
+        if (this.pool != null) {
+            this.pool.close();
+        }
+        if (this.replicas != null) {
+            this.replicas.close();
+        }
+        if (this.shards != null) {
+            this.shardReaders.shutdownNow();
+            for (DataSource shard : this.shards.values()) {
+                if (shard instanceof ConnectionPool) {
+                    ((ConnectionPool) shard).close();
+                }
+            }
+        }
+    }
 
 }
@@ -1,20 +1,68 @@
 package com.pythondrops.testing;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 public class DemoCode {
 
-    private DatabaseWrapper databaseWrapper;
+    private Database database;
+    private MembershipCache membershipCache;
+    private Metrics metrics = Metrics.DISABLED;
+    private PostRateLimiter rateLimiter;
 
-    public DemoCode(DatabaseWrapper databaseWrapper) {
-        this.databaseWrapper = databaseWrapper;
+    public DemoCode(Database database) {
+        this.database = database;
+    }
+
+    /**
+     * Checks permissions against the cache before going to the database.
+     * @param database Database
+     * @param membershipCache MembershipCache permissions already checked
+     */
+    public DemoCode(Database database, MembershipCache membershipCache) {
+        this.database = database;
+        this.membershipCache = membershipCache;
+    }
+
+    /**
+     * Also records call latency and errors by exception type in metrics, under the method names.
+     * Wrap the database in a {@link MeteredDatabase} with the same Metrics to see the database
+     * share of each call, under "db." names.
+     * @param database Database
+     * @param membershipCache MembershipCache permissions already checked, or null
+     * @param metrics Metrics
+     */
+    public DemoCode(Database database, MembershipCache membershipCache, Metrics metrics) {
+        this(database, membershipCache, metrics, null);
+    }
+
+    /**
+     * Also sheds posts over the per-user and per-channel rates before any permission check or
+     * database work.
+     * @param database Database
+     * @param membershipCache MembershipCache permissions already checked, or null
+     * @param metrics Metrics
+     * @param rateLimiter PostRateLimiter, or null for no limit
+     */
+    public DemoCode(Database database, MembershipCache membershipCache, Metrics metrics, PostRateLimiter rateLimiter) {
+        this.database = database;
+        this.membershipCache = membershipCache;
+        this.metrics = metrics;
+        this.rateLimiter = rateLimiter;
     }
 
     /**
      * Store a message into MESSAGE table.
      * User must be a member of the channel (USER_CHANNEL) and not be suspended.
      * Channel cannot be suspendend.
+     * Only the membership of this user in this channel is read, not all of the user's channels.
+     * Rejections are thrown without stack trace; {@link #tryPostMessageToChannel} returns them instead.
      *
      * All parameters are mandatory:
      *
@@ -28,39 +76,299 @@ public class DemoCode {
      * @throws SQLException - In case of database problems
      * @throws UserNotAllowedException - In case of user not being a member or is suspended
      * @throws ChannelNotAvailableException - In case of a suspended channel
+     * @throws RateLimitExceededException - In case the user or the channel posted too much, nothing was checked or stored
      */
     public UUID postMessageToChannel(UUID userId, UUID channelId, String title, String content)
+                throws SQLException, UserNotAllowedException, ChannelNotAvailableException, RateLimitExceededException {
+
+        long start = metrics.start();
+        try {
+            checkArgs(userId, channelId, title, content);
+            if (rateLimiter != null) {
+                rateLimiter.acquire(userId, channelId);
+            }
+            checkMembership(userId, channelId);
+
+            Message message = new Message();
+            message.channelId = channelId;
+            message.author = userId;
+            message.title = title;
+            message.content = content;
+
+            UUID messageId = database.postMessage(message);
+            metrics.record("postMessageToChannel", start);
+            return messageId;
+        } catch (Exception e) {
+            metrics.recordError("postMessageToChannel", start, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Same as {@link #postMessageToChannel}, with rejections returned instead of thrown, for
+     * callers that expect many of them. No exception is created for a rejection.
+     *
+     * @return PostOutcome {@link PostOutcome.Posted} with the message id, or the {@link PostOutcome.Rejected} reason
+     *
+     * @throws SQLException - In case of database problems
+     */
+    public PostOutcome tryPostMessageToChannel(UUID userId, UUID channelId, String title, String content) throws SQLException {
+        long start = metrics.start();
+        try {
+            PostOutcome.Rejected rejected = admit(userId, channelId, title, content);
+            if (rejected != null) {
+                metrics.recordError("tryPostMessageToChannel", start, rejected.errorType);
+                return rejected;
+            }
+
+            Message message = new Message();
+            message.channelId = channelId;
+            message.author = userId;
+            message.title = title;
+            message.content = content;
+
+            UUID messageId = database.postMessage(message);
+            metrics.record("tryPostMessageToChannel", start);
+            return new PostOutcome.Posted(messageId);
+        } catch (SQLException | RuntimeException e) {
+            metrics.recordError("tryPostMessageToChannel", start, e);
+            throw e;
+        }
+    }
+
+    // The checks of postMessageToChannel, in the same order; null when the post can be stored
+    private PostOutcome.Rejected admit(UUID userId, UUID channelId, String title, String content) throws SQLException {
+        if (!hasArgs(userId, channelId, title, content)) {
+            return PostOutcome.Rejected.INVALID_ARGS;
+        }
+        if (rateLimiter != null && !rateLimiter.tryAcquire(userId, channelId)) {
+            return PostOutcome.Rejected.RATE_LIMITED;
+        }
+        Membership membership = membership(userId, channelId, null);
+        if (membership == Membership.USER_NOT_ALLOWED) {
+            return PostOutcome.Rejected.USER_NOT_ALLOWED;
+        } else if (membership == Membership.CHANNEL_NOT_AVAILABLE) {
+            return PostOutcome.Rejected.CHANNEL_NOT_AVAILABLE;
+        }
+        return null;
+    }
+
+    /**
+     * Read a channel timeline, newest message first, one page at a time.
+     * The reader must be allowed to post to the channel, with the same rules of {@link #postMessageToChannel}.
+     *
+     * @param userId UUID of the reader
+     * @param channelId UUID of the channel
+     * @param after Message last message of the previous page, or null for the first page
+     * @param limit int page size, up to {@link Database#MAX_PAGE_SIZE}
+     *
+     * @return List of messages, shorter than limit on the last page
+     *
+     * @throws SQLException - In case of database problems
+     * @throws UserNotAllowedException - In case of user not being a member or is suspended
+     * @throws ChannelNotAvailableException - In case of a suspended channel
+     */
+    public List<Message> getChannelMessages(UUID userId, UUID channelId, Message after, int limit)
                 throws SQLException, UserNotAllowedException, ChannelNotAvailableException {
 
-        checkArgs(userId, channelId, title, content);
+        long start = metrics.start();
+        try {
+            checkArgs(userId, channelId);
+            checkMembership(userId, channelId);
 
-        User user = databaseWrapper.getUser(userId);
+            List<Message> messages = database.getChannelMessages(channelId, after, limit);
+            metrics.record("getChannelMessages", start);
+            return messages;
+        } catch (Exception e) {
+            metrics.recordError("getChannelMessages", start, e);
+            throw e;
+        }
+    }
 
-        if (user == null) {
-            throw new UserNotAllowedException("User does not exist or is suspended");
-        } else if (!user.channels.contains(channelId)) {
-            throw new ChannelNotAvailableException("User is not in the channel");
+    /**
+     * Store many messages at once.
+     * Each author is loaded only once, with all of its channels, and all accepted messages are
+     * inserted in JDBC batches, in a single transaction.
+     * Messages are checked with the same rules of {@link #postMessageToChannel}; a rejected message does
+     * not prevent the others from being stored.
+     *
+     * @param messages Collection of messages (author, channelId, title and content are mandatory)
+     *
+     * @return List of PostResult, one for each message in iteration order, with the new
+     *         message UUID or the exception that rejected it
+     *
+     * @throws SQLException - In case of database problems, no message is stored
+     */
+    public List<PostResult> postMessagesToChannel(Collection<Message> messages) throws SQLException {
+        long start = metrics.start();
+        try {
+            List<PostResult> results = postAll(messages);
+            metrics.record("postMessagesToChannel", start);
+            return results;
+        } catch (Exception e) {
+            metrics.recordError("postMessagesToChannel", start, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Post the same message to several channels at once, for announcements.
+     * The author is loaded once, with all of its channels, and the copies the author may post are
+     * inserted in JDBC batches, in a single transaction. Each channel is checked with the rules of
+     * {@link #postMessageToChannel}; repeated channel ids get a single copy.
+     *
+     * @param userId UUID of the message's author
+     * @param channelIds Collection of channel UUIDs
+     * @param title String Message title
+     * @param content String Message content
+     *
+     * @return List of PostResult, one per distinct channel in iteration order, with the new
+     *         message UUID or the exception that rejected the channel
+     *
+     * @throws SQLException - In case of database problems, no message is stored
+     */
+    public List<PostResult> postMessageToChannels(UUID userId, Collection<UUID> channelIds, String title, String content)
+                throws SQLException {
+
+        long start = metrics.start();
+        try {
+            checkArgs(userId, channelIds, title, content);
+            List<Message> messages = new ArrayList<>(channelIds.size());
+            for (UUID channelId : new LinkedHashSet<>(channelIds)) {
+                Message message = new Message();
+                message.channelId = channelId;
+                message.author = userId;
+                message.title = title;
+                message.content = content;
+                messages.add(message);
+            }
+            List<PostResult> results = postAll(messages);
+            metrics.record("postMessageToChannels", start);
+            return results;
+        } catch (Exception e) {
+            metrics.recordError("postMessageToChannels", start, e);
+            throw e;
+        }
+    }
+
+    private List<PostResult> postAll(Collection<Message> messages) throws SQLException {
+        List<PostResult> results = new ArrayList<>(messages.size());
+        List<PostResult> accepted = new ArrayList<>(messages.size());
+        Map<UUID, User> users = new HashMap<>();
+
+        for (Message message : messages) {
+            PostResult result = new PostResult();
+            result.message = message;
+            results.add(result);
+            try {
+                checkArgs(message.author, message.channelId, message.title, message.content);
+                if (rateLimiter != null) {
+                    rateLimiter.acquire(message.author, message.channelId);
+                }
+            } catch (IllegalArgumentException | RateLimitExceededException e) {
+                result.error = e;
+                continue;
+            }
+
+            Membership membership = membership(message.author, message.channelId, users);
+
+            if (membership == Membership.USER_NOT_ALLOWED) {
+                result.error = new UserNotAllowedException("User does not exist or is suspended", false);
+            } else if (membership == Membership.CHANNEL_NOT_AVAILABLE) {
+                result.error = new ChannelNotAvailableException("User is not in the channel", false);
+            } else {
+                accepted.add(result);
+            }
         }
 
-        Message message = new Message();
-        message.channelId = channelId;
-        message.author = userId;
-        message.title = title;
-        message.content = content;
+        List<Message> toInsert = new ArrayList<>(accepted.size());
+        for (PostResult result : accepted) {
+            toInsert.add(result.message);
+        }
+        List<UUID> messageIds = database.postMessages(toInsert);
+        for (int i = 0; i < accepted.size(); i++) {
+            accepted.get(i).messageId = messageIds.get(i);
+        }
+        return results;
+    }
 
-        return databaseWrapper.postMessage(message);
+    // Rejections are a frequent, expected outcome raised from here only: a stack trace would cost
+    // more than a cached check and tell nothing
+    private void checkMembership(UUID userId, UUID channelId)
+                throws SQLException, UserNotAllowedException, ChannelNotAvailableException {
+        Membership membership = membership(userId, channelId, null);
+        if (membership == Membership.USER_NOT_ALLOWED) {
+            throw new UserNotAllowedException("User does not exist or is suspended", false);
+        } else if (membership == Membership.CHANNEL_NOT_AVAILABLE) {
+            throw new ChannelNotAvailableException("User is not in the channel", false);
+        }
+    }
+
+    /**
+     * Membership with the rules of {@link Database#getMembership}, for every posting path, so the
+     * cache gets the same answer whichever path fills it.
+     * @param users Map of users already loaded by a bulk post, filled here, or null to only read the membership
+     */
+    private Membership membership(UUID userId, UUID channelId, Map<UUID, User> users) throws SQLException {
+        Membership membership = cachedMembership(userId, channelId);
+        if (membership != null) {
+            return membership;
+        }
+        if (users == null) {
+            membership = database.getMembership(userId, channelId);
+        } else {
+            User user = users.get(userId);
+            if (user == null) {
+                user = database.getFreshUser(userId);
+                if (user == null) {
+                    // No user could also mean a user without channels, only getMembership tells them
+                    // apart. Either way the answer holds for every channel: kept as a user with no
+                    // channels, suspended when it cannot post at all
+                    user = new User();
+                    user.id = userId;
+                    user.suspended = database.getMembership(userId, channelId) == Membership.USER_NOT_ALLOWED;
+                    user.channels = new ChannelSet();
+                }
+                users.put(userId, user);
+            }
+            if (user.suspended) {
+                membership = Membership.USER_NOT_ALLOWED;
+            } else {
+                // A loaded user has only the channels it can post to
+                membership = user.channels.contains(channelId) ? Membership.ALLOWED : Membership.CHANNEL_NOT_AVAILABLE;
+            }
+        }
+        cacheMembership(userId, channelId, membership);
+        return membership;
+    }
+
+    private Membership cachedMembership(UUID userId, UUID channelId) {
+        return membershipCache == null ? null : membershipCache.get(userId, channelId);
+    }
+
+    private void cacheMembership(UUID userId, UUID channelId, Membership membership) {
+        if (membershipCache != null) {
+            membershipCache.put(userId, channelId, membership);
+        }
     }
 
     private void checkArgs(Object... args) {
+        if (!hasArgs(args)) {
+            throw new IllegalArgumentException("Missing argument(s)");
+        }
+    }
+
+    private static boolean hasArgs(Object... args) {
         for(Object arg : args) {
             if (arg instanceof String) {
                 String argString = (String) arg;
                 if (argString == null || argString.isEmpty()) {
-                    throw new IllegalArgumentException("Missing argument(s)");
+                    return false;
                 }
             } else if (arg == null) {
-                throw new IllegalArgumentException("Missing argument(s)");
+                return false;
             }
         }
+        return true;
     }
 }
@@ -0,0 +1,302 @@
+package com.pythondrops.testing;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link Database} kept in the heap, for load tests and local runs without MySQL.
+ *
+ * Channels, users and memberships live in concurrent maps keyed by UUID and are filled with
+ * {@link #putChannel}, {@link #putUser} and {@link #putMembership}. Each channel has its own
+ * message log, ordered by (createdTime, id) like the MESSAGE_CHANNEL_TIME index, so posts to
+ * different channels never contend. Time-ordered ids make every post an append to the end of
+ * the log. Nothing is persisted.
+ */
+public class InMemoryDatabase implements Database {
+
+    private final Map<UUID, Channel> channels = new ConcurrentHashMap<>();
+    private final Map<UUID, UserRecord> users = new ConcurrentHashMap<>();
+    private final Map<UUID, ChannelLog> logs = new ConcurrentHashMap<>();
+
+    private static class UserRecord {
+        final String piiContentLink;
+        final boolean suspended;
+        // Channel id -> suspended on the channel
+        final Map<UUID, Boolean> memberships = new ConcurrentHashMap<>();
+
+        UserRecord(String piiContentLink, boolean suspended) {
+            this.piiContentLink = piiContentLink;
+            this.suspended = suspended;
+        }
+    }
+
+    private static class ChannelLog {
+        final ArrayList<Message> messages = new ArrayList<>();
+    }
+
+    /**
+     * Insert or replace a channel.
+     * @param channel Channel
+     */
+    public void putChannel(Channel channel) {
+        channels.put(channel.id, copy(channel));
+    }
+
+    /**
+     * Insert or replace a user, keeping its memberships.
+     * @param id UUID
+     * @param piiContentLink String
+     * @param suspended boolean
+     */
+    public void putUser(UUID id, String piiContentLink, boolean suspended) {
+        UserRecord user = new UserRecord(piiContentLink, suspended);
+        UserRecord previous = users.put(id, user);
+        if (previous != null) {
+            user.memberships.putAll(previous.memberships);
+        }
+    }
+
+    /**
+     * Insert or replace the membership of an existing user in a channel.
+     * @param userId UUID
+     * @param channelId UUID
+     * @param suspended boolean true if the user is suspended on this channel
+     */
+    public void putMembership(UUID userId, UUID channelId, boolean suspended) {
+        UserRecord user = users.get(userId);
+        if (user == null) {
+            throw new IllegalArgumentException("Unknown user " + userId);
+        }
+        user.memberships.put(channelId, suspended);
+    }
+
+    @Override
+    public Channel getChannel(UUID id) {
+        Channel channel = channels.get(id);
+        return channel == null ? null : copy(channel);
+    }
+
+    @Override
+    public boolean updateChannel(Channel channel) {
+        return channels.replace(channel.id, copy(channel)) != null;
+    }
+
+    @Override
+    public User getUser(UUID id) {
+        UserRecord record = users.get(id);
+        if (record == null || record.suspended) {
+            return null;
+        }
+        User user = null;
+        for (Map.Entry<UUID, Boolean> membership : record.memberships.entrySet()) {
+            Channel channel = channels.get(membership.getKey());
+            if (channel == null) {
+                continue;
+            }
+            // Like the INNER JOIN of the JDBC query, a user is found only with at least one channel
+            if (user == null) {
+                user = new User();
+                user.id = id;
+                user.suspended = false;
+                user.piiContentLink = record.piiContentLink;
+                user.channels = new ChannelSet();
+            }
+            if (!channel.hidden && !membership.getValue()) {
+                user.channels.add(channel.id);
+            }
+        }
+        return user;
+    }
+
+    @Override
+    public User getFreshUser(UUID id) {
+        return getUser(id);
+    }
+
+    @Override
+    public Membership getMembership(UUID userId, UUID channelId) {
+        UserRecord user = users.get(userId);
+        if (user == null || user.suspended) {
+            return Membership.USER_NOT_ALLOWED;
+        }
+        Boolean suspended = user.memberships.get(channelId);
+        Channel channel = channels.get(channelId);
+        if (suspended == null || suspended || channel == null || channel.hidden) {
+            return Membership.CHANNEL_NOT_AVAILABLE;
+        }
+        return Membership.ALLOWED;
+    }
+
+    @Override
+    public UUID postMessage(Message message) {
+        return append(message);
+    }
+
+    @Override
+    public List<UUID> postMessages(List<Message> messages) {
+        for (Message message : messages) {
+            if (message.author == null || message.channelId == null) {
+                throw new IllegalArgumentException("Missing author or channel");
+            }
+        }
+        List<UUID> messageIds = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            messageIds.add(append(message));
+        }
+        return messageIds;
+    }
+
+    private UUID append(Message message) {
+        Message stored = new Message();
+        stored.author = message.author;
+        stored.title = message.title;
+        stored.content = message.content;
+        stored.channelId = message.channelId;
+        ChannelLog log = logs.computeIfAbsent(message.channelId, id -> new ChannelLog());
+        synchronized (log) {
+            // Generated under the lock so ids and times of a channel only go up
+            stored.id = message.id != null ? message.id : UuidGenerator.timeOrdered();
+            stored.createdTime = new Date(System.currentTimeMillis());
+            List<Message> messages = log.messages;
+            int position = messages.size();
+            while (position > 0 && Message.compare(messages.get(position - 1), stored) > 0) {
+                position--;
+            }
+            messages.add(position, stored);
+        }
+        return stored.id;
+    }
+
+    @Override
+    public List<Message> getChannelMessages(UUID channelId, Message after, int limit) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("Page size must be between 1 and " + MAX_PAGE_SIZE);
+        }
+        if (after != null && (after.id == null || after.createdTime == null)) {
+            throw new IllegalArgumentException("Previous page message must have id and createdTime");
+        }
+        List<Message> page = new ArrayList<>(limit);
+        ChannelLog log = logs.get(channelId);
+        if (log == null) {
+            return page;
+        }
+        synchronized (log) {
+            List<Message> messages = log.messages;
+            int position = after == null ? messages.size() : firstNotBefore(messages, after);
+            while (position > 0 && page.size() < limit) {
+                page.add(copy(messages.get(--position)));
+            }
+        }
+        return page;
+    }
+
+    // Index of the first message that is not older than the given one
+    private static int firstNotBefore(List<Message> messages, Message message) {
+        int low = 0;
+        int high = messages.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (Message.compare(messages.get(middle), message) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public long exportChannelMessages(UUID channelId, OutputStream out) throws IOException {
+        Object[] messages = new Object[0];
+        ChannelLog log = logs.get(channelId);
+        if (log != null) {
+            // Only references are copied, posts are not blocked while the stream is written
+            synchronized (log) {
+                messages = log.messages.toArray();
+            }
+        }
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        MessageExport.writeHeader(data);
+        for (Object element : messages) {
+            Message message = (Message) element;
+            MessageExport.writeRecord(data, UuidCodec.toBytes(message.id), message.author == null ? null : UuidCodec.toBytes(message.author),
+              UuidCodec.toBytes(message.channelId), message.createdTime.getTime(), message.title, message.content);
+        }
+        MessageExport.writeEnd(data);
+        data.flush();
+        return messages.length;
+    }
+
+    @Override
+    public ChannelStats getChannelStats(UUID channelId) {
+        ChannelStats stats = new ChannelStats();
+        stats.channelId = channelId;
+        ChannelLog log = logs.get(channelId);
+        if (log != null) {
+            synchronized (log) {
+                stats.messageCount = log.messages.size();
+                if (!log.messages.isEmpty()) {
+                    stats.lastMessageTime = new Date(log.messages.get(log.messages.size() - 1).createdTime.getTime());
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * There is no author index here: every channel log is scanned.
+     */
+    @Override
+    public List<Message> getAuthorMessages(UUID authorId, int limit) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("Page size must be between 1 and " + MAX_PAGE_SIZE);
+        }
+        List<Message> found = new ArrayList<>();
+        for (ChannelLog log : logs.values()) {
+            synchronized (log) {
+                for (Message message : log.messages) {
+                    if (message.author.equals(authorId)) {
+                        found.add(copy(message));
+                    }
+                }
+            }
+        }
+        found.sort((a, b) -> Message.compare(b, a));
+        return new ArrayList<>(found.subList(0, Math.min(limit, found.size())));
+    }
+
+    /**
+     * Nothing to release.
+     */
+    @Override
+    public void close() {
+    }
+
+    private static Channel copy(Channel channel) {
+        Channel copy = new Channel();
+        copy.id = channel.id;
+        copy.name = channel.name;
+        copy.type = channel.type;
+        copy.hidden = channel.hidden;
+        return copy;
+    }
+
+    private static Message copy(Message message) {
+        Message copy = new Message();
+        copy.id = message.id;
+        copy.author = message.author;
+        copy.title = message.title;
+        copy.content = message.content;
+        copy.channelId = message.channelId;
+        copy.createdTime = new Date(message.createdTime.getTime());
+        return copy;
+    }
+}
@@ -0,0 +1,13 @@
+package com.pythondrops.testing;
+
+/**
+ * What a user can do in a channel.
+ */
+public enum Membership {
+    /** User is an unsuspended member of a visible channel */
+    ALLOWED,
+    /** User does not exist or is suspended */
+    USER_NOT_ALLOWED,
+    /** User is not a member, is suspended in the channel or the channel is hidden */
+    CHANNEL_NOT_AVAILABLE
+}
@@ -0,0 +1,147 @@
+package com.pythondrops.testing;
+
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Caches who can post where, so repeated posts of the same users do not hit the database.
+ *
+ * {@link Membership#ALLOWED} answers are cached for the configured TTL. Rejections can also be
+ * cached, for a shorter TTL, so clients retrying as a suspended user or on a channel they are not
+ * in are turned away without a query: {@link Membership#USER_NOT_ALLOWED} by user, for every
+ * channel, and {@link Membership#CHANNEL_NOT_AVAILABLE} by user and channel.
+ * Changes that affect permissions should be reported with the invalidate methods so they are
+ * seen right away.
+ */
+public class MembershipCache {
+
+    private final ExpiringCache<Key, Membership> memberships;
+    // Rejections, null when not cached
+    private final ExpiringCache<UUID, Membership> rejectedUsers;
+    private final ExpiringCache<Key, Membership> rejectedMemberships;
+
+    /**
+     * Caches allowed memberships only.
+     */
+    public MembershipCache(int maxSize, long ttlMillis) {
+        this.memberships = new ExpiringCache<>(maxSize, ttlMillis);
+        this.rejectedUsers = null;
+        this.rejectedMemberships = null;
+    }
+
+    /**
+     * Caches allowed memberships and rejections.
+     * @param rejectedMaxSize int entries kept of each of the rejected users and rejected memberships
+     * @param rejectedTtlMillis long how long a rejection is repeated without asking the database
+     */
+    public MembershipCache(int maxSize, long ttlMillis, int rejectedMaxSize, long rejectedTtlMillis) {
+        this.memberships = new ExpiringCache<>(maxSize, ttlMillis);
+        this.rejectedUsers = new ExpiringCache<>(rejectedMaxSize, rejectedTtlMillis);
+        this.rejectedMemberships = new ExpiringCache<>(rejectedMaxSize, rejectedTtlMillis);
+    }
+
+    /**
+     * @return the cached membership or null if not cached
+     */
+    public Membership get(UUID userId, UUID channelId) {
+        Key key = new Key(userId, channelId);
+        Membership membership = memberships.get(key);
+        if (membership != null || rejectedUsers == null) {
+            return membership;
+        }
+        membership = rejectedUsers.get(userId);
+        return membership != null ? membership : rejectedMemberships.get(key);
+    }
+
+    public void put(UUID userId, UUID channelId, Membership membership) {
+        if (membership == Membership.ALLOWED) {
+            memberships.put(new Key(userId, channelId), membership);
+        } else if (rejectedUsers != null) {
+            if (membership == Membership.USER_NOT_ALLOWED) {
+                rejectedUsers.put(userId, membership);
+            } else {
+                rejectedMemberships.put(new Key(userId, channelId), membership);
+            }
+        }
+    }
+
+    /**
+     * A user was suspended or reinstated, or joined or left a channel.
+     */
+    public void invalidateUser(UUID userId) {
+        memberships.invalidateIf((key, membership) -> key.userId.equals(userId));
+        if (rejectedUsers != null) {
+            rejectedUsers.invalidate(userId);
+            rejectedMemberships.invalidateIf((key, membership) -> key.userId.equals(userId));
+        }
+    }
+
+    /**
+     * A channel was hidden, or its members were suspended or removed.
+     */
+    public void invalidateChannel(UUID channelId) {
+        memberships.invalidateIf((key, membership) -> key.channelId.equals(channelId));
+        if (rejectedMemberships != null) {
+            rejectedMemberships.invalidateIf((key, membership) -> key.channelId.equals(channelId));
+        }
+    }
+
+    public void invalidateAll() {
+        memberships.invalidateAll();
+        if (rejectedUsers != null) {
+            rejectedUsers.invalidateAll();
+            rejectedMemberships.invalidateAll();
+        }
+    }
+
+    /**
+     * @return CacheStats of the allowed memberships
+     */
+    public CacheStats getStats() {
+        return memberships.getStats();
+    }
+
+    /**
+     * Rejected users and rejected memberships together; hits are the database lookups suppressed
+     * for repeated rejections.
+     * @return CacheStats of the rejections, all zero when they are not cached
+     */
+    public CacheStats getRejectionStats() {
+        CacheStats stats = new CacheStats();
+        if (rejectedUsers != null) {
+            CacheStats users = rejectedUsers.getStats();
+            CacheStats pairs = rejectedMemberships.getStats();
+            stats.hits = users.hits + pairs.hits;
+            // A miss of the rejected users is looked up again in the rejected memberships
+            stats.misses = pairs.misses;
+            stats.evictions = users.evictions + pairs.evictions;
+            stats.expirations = users.expirations + pairs.expirations;
+            stats.size = users.size + pairs.size;
+        }
+        return stats;
+    }
+
+    private static final class Key {
+        final UUID userId;
+        final UUID channelId;
+
+        Key(UUID userId, UUID channelId) {
+            this.userId = userId;
+            this.channelId = channelId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return userId.equals(other.userId) && channelId.equals(other.channelId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(userId, channelId);
+        }
+    }
+}
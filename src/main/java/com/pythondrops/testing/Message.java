@@ -33,4 +33,14 @@ public class Message {
             return false;
         }
     }
+
+    // Same order as MySQL: CREATED_TIME, then the BINARY(16) id compared as unsigned bytes
+    static int compare(Message a, Message b) {
+        int byTime = Long.compare(a.createdTime.getTime(), b.createdTime.getTime());
+        if (byTime != 0) {
+            return byTime;
+        }
+        int byMsb = Long.compareUnsigned(a.id.getMostSignificantBits(), b.id.getMostSignificantBits());
+        return byMsb != 0 ? byMsb : Long.compareUnsigned(a.id.getLeastSignificantBits(), b.id.getLeastSignificantBits());
+    }
 }
@@ -0,0 +1,121 @@
+package com.pythondrops.testing;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Binary format written by {@link DatabaseWrapper#exportChannelMessages}.
+ *
+ * A header ("MSGX" and a format version int) followed by one record per message and a 0 byte at
+ * the end. Each record is a 1 byte (2 when the message has no author), the id, author and channel
+ * as 16 raw bytes each, without the author when there is none, the creation time in epoch
+ * milliseconds, then title and content as an int byte length (-1 for null) and UTF-8 bytes.
+ * Numbers are big endian, as written by {@link DataOutputStream}.
+ * Version 1 exports, which always have an author, are still read.
+ */
+public final class MessageExport {
+
+    static final int MAGIC = 0x4D534758; // "MSGX"
+    static final int VERSION = 2;
+
+    private MessageExport() {
+    }
+
+    static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    static void writeRecord(DataOutputStream out, byte[] id, byte[] author, byte[] channelId, long createdTime,
+                            String title, String content) throws IOException {
+        out.writeByte(author == null ? 2 : 1);
+        out.write(id);
+        if (author != null) {
+            out.write(author);
+        }
+        out.write(channelId);
+        out.writeLong(createdTime);
+        writeString(out, title);
+        writeString(out, content);
+    }
+
+    static void writeEnd(DataOutputStream out) throws IOException {
+        out.writeByte(0);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Reads an export one message at a time.
+     */
+    public static class Reader {
+
+        private final DataInputStream in;
+        private boolean finished;
+
+        /**
+         * @param in InputStream positioned at the start of an export, buffered by the caller if needed
+         * @throws IOException if the stream is not an export of a known version
+         */
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(in);
+            if (this.in.readInt() != MAGIC) {
+                throw new IOException("Not a message export");
+            }
+            int version = this.in.readInt();
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Unsupported message export version " + version);
+            }
+        }
+
+        /**
+         * @return Message the next message or null at the end of the export
+         * @throws IOException
+         */
+        public Message next() throws IOException {
+            if (finished) {
+                return null;
+            }
+            byte record = in.readByte();
+            if (record == 0) {
+                finished = true;
+                return null;
+            }
+            Message message = new Message();
+            message.id = readUuid();
+            message.author = record == 2 ? null : readUuid();
+            message.channelId = readUuid();
+            message.createdTime = new Date(in.readLong());
+            message.title = readString();
+            message.content = readString();
+            return message;
+        }
+
+        private UUID readUuid() throws IOException {
+            return new UUID(in.readLong(), in.readLong());
+        }
+
+        private String readString() throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.pythondrops.testing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * {@link Database} that records the latency and errors of every call in {@link Metrics}, under
+ * the method name prefixed with "db.", and then delegates.
+ * The prefix keeps database calls apart from the {@link DemoCode} calls of the same name when
+ * both share one Metrics.
+ * Wrap a database only when metrics are wanted; an unwrapped one has no instrumentation cost.
+ */
+public class MeteredDatabase implements Database {
+
+    private final Database database;
+    private final Metrics metrics;
+
+    public MeteredDatabase(Database database, Metrics metrics) {
+        this.database = database;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Channel getChannel(UUID id) throws SQLException {
+        long start = metrics.start();
+        try {
+            Channel channel = database.getChannel(id);
+            metrics.record("db.getChannel", start);
+            return channel;
+        } catch (Exception e) {
+            metrics.recordError("db.getChannel", start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean updateChannel(Channel channel) throws SQLException {
+        long start = metrics.start();
+        try {
+            boolean updated = database.updateChannel(channel);
+            metrics.record("db.updateChannel", start);
+            return updated;
+        } catch (Exception e) {
+            metrics.recordError("db.updateChannel", start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public User getUser(UUID id) throws SQLException {
+        long start = metrics.start();
+        try {
+            User user = database.getUser(id);
+            metrics.record("db.getUser", start);
+            return user;
+        } catch (Exception e) {
+            metrics.recordError("db.getUser", start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public User getFreshUser(UUID id) throws SQLException {
+        long start = metrics.start();
+        try {
+            User user = database.getFreshUser(id);
+            metrics.record("db.getFreshUser", start);
+            return user;
+        } catch (Exception e) {
+            metrics.recordError("db.getFreshUser", start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public Membership getMembership(UUID userId, UUID channelId) throws SQLException {
+        long start = metrics.start();
+        try {
+            Membership membership = database.getMembership(userId, channelId);
+            metrics.record("db.getMembership", start);
+            return membership;
+        } catch (Exception e) {
+            metrics.recordError("db.getMembership", start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public UUID postMessage(Message message) throws SQLException {
+        long start = metrics.start();
+        try {
+            UUID messageId = database.postMessage(message);
+            metrics.record("db.postMessage", start);
+            return messageId;
+        } catch (Exception e) {
+            metrics.recordError("db.postMessage", start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public List<UUID> postMessages(List<Message> messages) throws SQLException {
+        long start = metrics.start();
+        try {
+            List<UUID> messageIds = database.postMessages(messages);
+            metrics.record("db.postMessages", start);
+            return messageIds;
+        } catch (Exception e) {
+            metrics.recordError("db.postMessages", start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public List<Message> getChannelMessages(UUID channelId, Message after, int limit) throws SQLException {
+        long start = metrics.start();
+        try {
+            List<Message> messages = database.getChannelMessages(channelId, after, limit);
+            metrics.record("db.getChannelMessages", start);
+            return messages;
+        } catch (Exception e) {
+            metrics.recordError("db.getChannelMessages", start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public long exportChannelMessages(UUID channelId, OutputStream out) throws SQLException, IOException {
+        long start = metrics.start();
+        try {
+            long exported = database.exportChannelMessages(channelId, out);
+            metrics.record("db.exportChannelMessages", start);
+            return exported;
+        } catch (Exception e) {
+            metrics.recordError("db.exportChannelMessages", start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public ChannelStats getChannelStats(UUID channelId) throws SQLException {
+        long start = metrics.start();
+        try {
+            ChannelStats stats = database.getChannelStats(channelId);
+            metrics.record("db.getChannelStats", start);
+            return stats;
+        } catch (Exception e) {
+            metrics.recordError("db.getChannelStats", start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public List<Message> getAuthorMessages(UUID authorId, int limit) throws SQLException {
+        long start = metrics.start();
+        try {
+            List<Message> messages = database.getAuthorMessages(authorId, limit);
+            metrics.record("db.getAuthorMessages", start);
+            return messages;
+        } catch (Exception e) {
+            metrics.recordError("db.getAuthorMessages", start, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        database.close();
+    }
+}
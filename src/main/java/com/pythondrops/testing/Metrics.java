@@ -0,0 +1,180 @@
+package com.pythondrops.testing;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Call counts, latency histograms and errors by exception type, per operation.
+ *
+ * Code being measured calls {@link #start()} and then {@link #record} or {@link #recordError}.
+ * {@link #DISABLED} skips even the clock read, so instrumented code costs a field read and a
+ * branch when metrics are off. Results are pulled with {@link #getStats()} or through JMX after
+ * {@link #register(String)}.
+ */
+public class Metrics implements MetricsMXBean {
+
+    public static final Metrics DISABLED = new Metrics(false);
+
+    private final boolean enabled;
+    private final Map<String, Operation> operations = new ConcurrentHashMap<>();
+    private ObjectName objectName;
+
+    private static class Operation {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    }
+
+    public Metrics() {
+        this(true);
+    }
+
+    private Metrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return long start time to pass to record or recordError
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public void record(String operation, long start) {
+        if (enabled) {
+            operation(operation).latency.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Record a failed call; its latency is kept in the same histogram as the successful ones.
+     */
+    public void recordError(String operation, long start, Throwable error) {
+        recordError(operation, start, error.getClass().getSimpleName());
+    }
+
+    /**
+     * Same as {@link #recordError(String, long, Throwable)}, for failures that are returned instead of thrown.
+     * @param errorType String counted in {@link OperationStats#errorsByType}
+     */
+    public void recordError(String operation, long start, String errorType) {
+        if (enabled) {
+            Operation op = operation(operation);
+            op.latency.record(System.nanoTime() - start);
+            op.errors.computeIfAbsent(errorType, type -> new LongAdder()).increment();
+        }
+    }
+
+    private Operation operation(String operation) {
+        Operation op = operations.get(operation);
+        return op != null ? op : operations.computeIfAbsent(operation, name -> new Operation());
+    }
+
+    /**
+     * @return OperationStats for each operation called at least once, by operation name
+     */
+    public Map<String, OperationStats> getStats() {
+        Map<String, OperationStats> stats = new TreeMap<>();
+        for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+            LatencyHistogram latency = entry.getValue().latency;
+            long[] percentiles = latency.getPercentiles(50, 90, 99, 99.9);
+            OperationStats op = new OperationStats();
+            op.count = latency.getCount();
+            op.errorsByType = new TreeMap<>();
+            for (Map.Entry<String, LongAdder> error : entry.getValue().errors.entrySet()) {
+                long errors = error.getValue().sum();
+                op.errorsByType.put(error.getKey(), errors);
+                op.errors += errors;
+            }
+            op.meanMicros = latency.getMean() / 1000;
+            op.p50Micros = percentiles[0] / 1000.0;
+            op.p90Micros = percentiles[1] / 1000.0;
+            op.p99Micros = percentiles[2] / 1000.0;
+            op.p999Micros = percentiles[3] / 1000.0;
+            op.maxMicros = latency.getMax() / 1000.0;
+            stats.put(entry.getKey(), op);
+        }
+        return stats;
+    }
+
+    /**
+     * Publish in the platform MBean server as com.pythondrops.testing:type=Metrics,name=&lt;name&gt;.
+     * @param name String unique among registered Metrics
+     */
+    public synchronized void register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("com.pythondrops.testing:type=Metrics,name=" + ObjectName.quote(name));
+            server.registerMBean(this, objectName);
+            this.objectName = objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                throw new IllegalStateException(e);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        operations.forEach((name, op) -> counts.put(name, op.latency.getCount()));
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getErrors() {
+        Map<String, Long> errors = new TreeMap<>();
+        operations.forEach((name, op) -> op.errors.forEach((type, count) -> errors.put(name + "." + type, count.sum())));
+        return errors;
+    }
+
+    @Override
+    public Map<String, Double> getMeanMicros() {
+        return statistic(op -> op.meanMicros);
+    }
+
+    @Override
+    public Map<String, Double> getP50Micros() {
+        return statistic(op -> op.p50Micros);
+    }
+
+    @Override
+    public Map<String, Double> getP99Micros() {
+        return statistic(op -> op.p99Micros);
+    }
+
+    @Override
+    public Map<String, Double> getMaxMicros() {
+        return statistic(op -> op.maxMicros);
+    }
+
+    private Map<String, Double> statistic(ToDoubleFunction<OperationStats> value) {
+        Map<String, Double> values = new TreeMap<>();
+        getStats().forEach((name, op) -> values.put(name, value.applyAsDouble(op)));
+        return values;
+    }
+
+    @Override
+    public void reset() {
+        for (Operation op : operations.values()) {
+            op.latency.reset();
+            op.errors.clear();
+        }
+    }
+}
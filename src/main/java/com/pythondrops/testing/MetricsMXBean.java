@@ -0,0 +1,26 @@
+package com.pythondrops.testing;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link Metrics}, every attribute is keyed by operation name.
+ */
+public interface MetricsMXBean {
+
+    Map<String, Long> getCounts();
+
+    /**
+     * @return failed calls keyed by operation and exception name, e.g. "postMessageToChannel.UserNotAllowedException"
+     */
+    Map<String, Long> getErrors();
+
+    Map<String, Double> getMeanMicros();
+
+    Map<String, Double> getP50Micros();
+
+    Map<String, Double> getP99Micros();
+
+    Map<String, Double> getMaxMicros();
+
+    void reset();
+}
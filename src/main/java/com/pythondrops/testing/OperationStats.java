@@ -0,0 +1,24 @@
+package com.pythondrops.testing;
+
+import java.util.Map;
+
+/**
+ * Point in time snapshot of one operation measured by {@link Metrics}.
+ */
+public class OperationStats {
+    public long count;
+    public long errors;
+    /** Failed calls by exception simple name */
+    public Map<String, Long> errorsByType;
+    public double meanMicros;
+    public double p50Micros;
+    public double p90Micros;
+    public double p99Micros;
+    public double p999Micros;
+    public double maxMicros;
+
+    @Override
+    public String toString() {
+        return "OperationStats{" + "count=" + count + ", errors=" + errors + ", errorsByType=" + errorsByType + ", meanMicros=" + meanMicros + ", p50Micros=" + p50Micros + ", p90Micros=" + p90Micros + ", p99Micros=" + p99Micros + ", p999Micros=" + p999Micros + ", maxMicros=" + maxMicros + '}';
+    }
+}
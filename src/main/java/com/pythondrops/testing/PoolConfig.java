@@ -0,0 +1,19 @@
+package com.pythondrops.testing;
+
+/**
+ * Sizing and timeout settings for {@link ConnectionPool}.
+ */
+public class PoolConfig {
+    public int minSize = 2;
+    public int maxSize = 10;
+    public long idleTimeoutMillis = 10 * 60 * 1000;
+    public long acquireTimeoutMillis = 30 * 1000;
+    public int validationTimeoutSeconds = 2;
+    /** Prepared statements kept open per connection, 0 disables statement reuse */
+    public int statementCacheSize = 64;
+
+    @Override
+    public String toString() {
+        return "PoolConfig{" + "minSize=" + minSize + ", maxSize=" + maxSize + ", idleTimeoutMillis=" + idleTimeoutMillis + ", acquireTimeoutMillis=" + acquireTimeoutMillis + ", validationTimeoutSeconds=" + validationTimeoutSeconds + ", statementCacheSize=" + statementCacheSize + '}';
+    }
+}
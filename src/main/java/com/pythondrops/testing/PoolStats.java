@@ -0,0 +1,22 @@
+package com.pythondrops.testing;
+
+/**
+ * Point in time snapshot of a {@link ConnectionPool}.
+ */
+public class PoolStats {
+    public int active;
+    public int idle;
+    public int waiting;
+    public int total;
+    public long acquireCount;
+    public long acquireTimeouts;
+    public long averageAcquireMicros;
+    public long maxAcquireMicros;
+    public long statementsPrepared;
+    public long statementsReused;
+
+    @Override
+    public String toString() {
+        return "PoolStats{" + "active=" + active + ", idle=" + idle + ", waiting=" + waiting + ", total=" + total + ", acquireCount=" + acquireCount + ", acquireTimeouts=" + acquireTimeouts + ", averageAcquireMicros=" + averageAcquireMicros + ", maxAcquireMicros=" + maxAcquireMicros + ", statementsPrepared=" + statementsPrepared + ", statementsReused=" + statementsReused + '}';
+    }
+}
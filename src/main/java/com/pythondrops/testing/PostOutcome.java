@@ -0,0 +1,52 @@
+package com.pythondrops.testing;
+
+import java.util.UUID;
+
+/**
+ * Result of {@link DemoCode#tryPostMessageToChannel}: the message was {@link Posted}, or
+ * {@link Rejected} for one of the reasons that {@link DemoCode#postMessageToChannel} throws.
+ */
+public sealed interface PostOutcome permits PostOutcome.Posted, PostOutcome.Rejected {
+
+    boolean isPosted();
+
+    final class Posted implements PostOutcome {
+        public final UUID messageId;
+
+        public Posted(UUID messageId) {
+            this.messageId = messageId;
+        }
+
+        @Override
+        public boolean isPosted() {
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "Posted{" + "messageId=" + messageId + '}';
+        }
+    }
+
+    /**
+     * Shared constants, a rejection allocates nothing.
+     */
+    enum Rejected implements PostOutcome {
+        INVALID_ARGS(IllegalArgumentException.class),
+        RATE_LIMITED(RateLimitExceededException.class),
+        USER_NOT_ALLOWED(UserNotAllowedException.class),
+        CHANNEL_NOT_AVAILABLE(ChannelNotAvailableException.class);
+
+        // Recorded in Metrics like the exception postMessageToChannel would throw
+        final String errorType;
+
+        Rejected(Class<? extends Exception> exception) {
+            this.errorType = exception.getSimpleName();
+        }
+
+        @Override
+        public boolean isPosted() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.pythondrops.testing;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Admission control for posts: a post needs a permit from its author and from its channel.
+ * A permit taken from the author is given back when the channel refuses the post.
+ */
+public class PostRateLimiter {
+
+    private final RateLimiter users;
+    private final RateLimiter channels;
+    private final LongAdder rejectedByUser = new LongAdder();
+    private final LongAdder rejectedByChannel = new LongAdder();
+
+    public PostRateLimiter(RateLimitConfig config) {
+        this(config, System::nanoTime);
+    }
+
+    PostRateLimiter(RateLimitConfig config, LongSupplier clock) {
+        this.users = config.userPostsPerSecond > 0
+          ? new RateLimiter(config.userPostsPerSecond, config.userBurst, config.maxTrackedUsers, clock) : null;
+        this.channels = config.channelPostsPerSecond > 0
+          ? new RateLimiter(config.channelPostsPerSecond, config.channelBurst, config.maxTrackedChannels, clock) : null;
+    }
+
+    /**
+     * @throws RateLimitExceededException when the user or the channel is over its rate, without stack trace
+     */
+    public void acquire(UUID userId, UUID channelId) throws RateLimitExceededException {
+        String rejection = admit(userId, channelId);
+        if (rejection != null) {
+            throw new RateLimitExceededException(rejection, false);
+        }
+    }
+
+    /**
+     * Same as {@link #acquire}, without an exception.
+     * @return boolean false when the user or the channel is over its rate
+     */
+    public boolean tryAcquire(UUID userId, UUID channelId) {
+        return admit(userId, channelId) == null;
+    }
+
+    // Reason of the rejection, or null when both permits were taken
+    private String admit(UUID userId, UUID channelId) {
+        if (users != null && !users.tryAcquire(userId)) {
+            rejectedByUser.increment();
+            return "Too many posts by user";
+        }
+        if (channels != null && !channels.tryAcquire(channelId)) {
+            if (users != null) {
+                users.release(userId);
+            }
+            rejectedByChannel.increment();
+            return "Too many posts to channel";
+        }
+        return null;
+    }
+
+    public long getRejectedByUser() {
+        return rejectedByUser.sum();
+    }
+
+    public long getRejectedByChannel() {
+        return rejectedByChannel.sum();
+    }
+}
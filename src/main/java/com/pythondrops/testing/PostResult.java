@@ -0,0 +1,21 @@
+package com.pythondrops.testing;
+
+import java.util.UUID;
+
+/**
+ * Outcome of one message in a bulk post: either the new message id or the reason it was rejected.
+ */
+public class PostResult {
+    public Message message;
+    public UUID messageId;
+    public Exception error;
+
+    public boolean isPosted() {
+        return messageId != null;
+    }
+
+    @Override
+    public String toString() {
+        return "PostResult{" + "message=" + message + ", messageId=" + messageId + ", error=" + error + '}';
+    }
+}
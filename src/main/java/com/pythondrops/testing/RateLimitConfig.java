@@ -0,0 +1,20 @@
+package com.pythondrops.testing;
+
+/**
+ * Post rates for {@link PostRateLimiter}. A rate of 0 turns that limit off.
+ */
+public class RateLimitConfig {
+    public double userPostsPerSecond = 5;
+    /** Posts a user can make at once after being idle */
+    public int userBurst = 20;
+    public double channelPostsPerSecond = 200;
+    public int channelBurst = 400;
+    /** Users and channels remembered at most; idle ones are forgotten first */
+    public int maxTrackedUsers = 100_000;
+    public int maxTrackedChannels = 10_000;
+
+    @Override
+    public String toString() {
+        return "RateLimitConfig{" + "userPostsPerSecond=" + userPostsPerSecond + ", userBurst=" + userBurst + ", channelPostsPerSecond=" + channelPostsPerSecond + ", channelBurst=" + channelBurst + ", maxTrackedUsers=" + maxTrackedUsers + ", maxTrackedChannels=" + maxTrackedChannels + '}';
+    }
+}
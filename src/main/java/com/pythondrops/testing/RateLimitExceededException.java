@@ -0,0 +1,19 @@
+package com.pythondrops.testing;
+
+public class RateLimitExceededException extends Exception {
+   String message;
+
+   public RateLimitExceededException (String message) {
+      this.message = message;
+   }
+
+   public RateLimitExceededException (String message, boolean writableStackTrace) {
+      super(null, null, false, writableStackTrace);
+      this.message = message;
+   }
+
+   @Override
+   public String getMessage() {
+      return this.message;
+   }
+}
@@ -0,0 +1,128 @@
+package com.pythondrops.testing;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket per UUID, without locks.
+ *
+ * Each key holds a single number, the time its bucket will be full again (the generic cell rate
+ * algorithm), updated with compare-and-set. Keys are spread over stripes of bounded size. A key
+ * whose bucket is full again carries no information, so when a stripe is full those are dropped
+ * first; if every key of the stripe is still limited, new keys are let through untracked rather
+ * than evicting a limited one.
+ */
+public class RateLimiter {
+
+    private static final int STRIPES = 16;
+
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final int maxKeysPerStripe;
+    private final LongSupplier clock;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private static class Stripe {
+        final Map<UUID, AtomicLong> buckets = new ConcurrentHashMap<>();
+        final AtomicBoolean sweeping = new AtomicBoolean();
+    }
+
+    /**
+     * @param permitsPerSecond double sustained rate per key
+     * @param burst int permits a key can use at once after being idle
+     * @param maxKeys int keys tracked at most
+     */
+    public RateLimiter(double permitsPerSecond, int burst, int maxKeys) {
+        this(permitsPerSecond, burst, maxKeys, System::nanoTime);
+    }
+
+    RateLimiter(double permitsPerSecond, int burst, int maxKeys, LongSupplier clock) {
+        if (permitsPerSecond <= 0 || burst < 1 || maxKeys < 1) {
+            throw new IllegalArgumentException("Rate, burst and maximum keys must be positive");
+        }
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        this.toleranceNanos = intervalNanos * (burst - 1);
+        this.maxKeysPerStripe = Math.max(1, maxKeys / STRIPES);
+        this.clock = clock;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Take one permit for the key, if available.
+     * @return boolean false if the key is over its rate
+     */
+    public boolean tryAcquire(UUID key) {
+        long now = clock.getAsLong();
+        Stripe stripe = stripeFor(key);
+        AtomicLong bucket = stripe.buckets.get(key);
+        if (bucket == null) {
+            if (stripe.buckets.size() >= maxKeysPerStripe && !sweep(stripe, now)) {
+                return true;
+            }
+            // A new key starts with a full bucket
+            bucket = stripe.buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+        }
+        while (true) {
+            long full = bucket.get();
+            long start = full - now > 0 ? full : now;
+            if (start - now > toleranceNanos) {
+                return false;
+            }
+            if (bucket.compareAndSet(full, start + intervalNanos)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give back a permit taken by {@link #tryAcquire(UUID)}, when the call it allowed did not happen.
+     */
+    public void release(UUID key) {
+        AtomicLong bucket = stripeFor(key).buckets.get(key);
+        if (bucket != null) {
+            bucket.addAndGet(-intervalNanos);
+        }
+    }
+
+    /**
+     * @return keys currently tracked
+     */
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.buckets.size();
+        }
+        return size;
+    }
+
+    private Stripe stripeFor(UUID key) {
+        long h = key.getMostSignificantBits() ^ key.getLeastSignificantBits();
+        int hash = (int) (h ^ (h >>> 32));
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    // Drops keys whose bucket is full again; false if the stripe is still full
+    private boolean sweep(Stripe stripe, long now) {
+        if (stripe.sweeping.compareAndSet(false, true)) {
+            try {
+                Iterator<AtomicLong> buckets = stripe.buckets.values().iterator();
+                while (buckets.hasNext()) {
+                    if (buckets.next().get() - now <= 0) {
+                        buckets.remove();
+                    }
+                }
+            } finally {
+                stripe.sweeping.set(false);
+            }
+        }
+        return stripe.buckets.size() < maxKeysPerStripe;
+    }
+}
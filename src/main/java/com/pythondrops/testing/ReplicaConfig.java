@@ -0,0 +1,18 @@
+package com.pythondrops.testing;
+
+/**
+ * Read replica settings for {@link DatabaseWrapper}.
+ */
+public class ReplicaConfig {
+    /** How long after a write its channel is read from the primary, at least the usual replication lag */
+    public long maxLagMillis = 1000;
+    /** How long a replica that failed to give a connection is skipped */
+    public long retryAfterMillis = 5000;
+    /** Recently written channels remembered at most */
+    public int recentWrites = 10_000;
+
+    @Override
+    public String toString() {
+        return "ReplicaConfig{" + "maxLagMillis=" + maxLagMillis + ", retryAfterMillis=" + retryAfterMillis + ", recentWrites=" + recentWrites + '}';
+    }
+}
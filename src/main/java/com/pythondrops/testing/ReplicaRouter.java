@@ -0,0 +1,118 @@
+package com.pythondrops.testing;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * Spreads read connections over replicas, round-robin.
+ *
+ * A replica that fails to give a connection is skipped for {@link ReplicaConfig#retryAfterMillis}
+ * and the next one is tried. When no replica is available {@link #getConnection()} returns null
+ * and the caller reads from the primary.
+ */
+public class ReplicaRouter implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(ReplicaRouter.class.getName());
+
+    private final DataSource[] replicas;
+    // Where connections come from: the replicas, behind the tracer once tracing is on
+    private volatile DataSource[] sources;
+    private final long retryAfterNanos;
+    private final AtomicInteger next = new AtomicInteger();
+    // nanoTime until which each replica is skipped, 0 when up
+    private final AtomicLongArray downUntil;
+    private final LongAdder replicaReads = new LongAdder();
+    private final LongAdder primaryFallbacks = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public ReplicaRouter(List<DataSource> replicas, ReplicaConfig config) {
+        if (replicas.isEmpty()) {
+            throw new IllegalArgumentException("At least one replica is needed");
+        }
+        this.replicas = replicas.toArray(new DataSource[0]);
+        this.sources = this.replicas;
+        this.retryAfterNanos = TimeUnit.MILLISECONDS.toNanos(config.retryAfterMillis);
+        this.downUntil = new AtomicLongArray(this.replicas.length);
+    }
+
+    /**
+     * @return Connection to the next available replica, or null if none is available
+     */
+    public Connection getConnection() {
+        DataSource[] sources = this.sources;
+        int first = Math.floorMod(next.getAndIncrement(), replicas.length);
+        for (int i = 0; i < replicas.length; i++) {
+            int replica = (first + i) % replicas.length;
+            long down = downUntil.get(replica);
+            if (down != 0 && System.nanoTime() - down < 0) {
+                continue;
+            }
+            try {
+                Connection connection = sources[replica].getConnection();
+                downUntil.set(replica, 0);
+                replicaReads.increment();
+                return connection;
+            } catch (SQLException e) {
+                failures.increment();
+                downUntil.set(replica, (System.nanoTime() + retryAfterNanos) | 1);
+                LOGGER.log(Level.WARNING, "Replica " + replica + " unavailable, skipped for a while", e);
+            }
+        }
+        primaryFallbacks.increment();
+        return null;
+    }
+
+    /**
+     * Trace the statements of every replica from now on.
+     * @param tracer StatementTracer of the primary
+     */
+    void trace(StatementTracer tracer) {
+        DataSource[] traced = new DataSource[replicas.length];
+        for (int i = 0; i < replicas.length; i++) {
+            traced[i] = tracer.trace(replicas[i]);
+        }
+        this.sources = traced;
+    }
+
+    /**
+     * @return reads served by a replica
+     */
+    public long getReplicaReads() {
+        return replicaReads.sum();
+    }
+
+    /**
+     * @return reads sent to the primary because no replica was available
+     */
+    public long getPrimaryFallbacks() {
+        return primaryFallbacks.sum();
+    }
+
+    /**
+     * @return failed attempts to get a replica connection
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * Closes the replicas that are connection pools.
+     */
+    @Override
+    public void close() {
+        for (DataSource replica : replicas) {
+            if (replica instanceof ConnectionPool) {
+                ((ConnectionPool) replica).close();
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.pythondrops.testing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Consistent hash ring placing channels on named shards.
+ *
+ * Each shard owns {@link #VIRTUAL_NODES} points of a 64 bit ring and a channel belongs to the
+ * first point at or after the hash of its id. Adding or removing a shard moves only the channels
+ * of the points it takes or gives back, about 1/N of them, instead of nearly all of them like
+ * {@code hash % N}. Maps are immutable; {@link #withShard} and {@link #withoutShard} return new ones.
+ */
+public final class ShardMap {
+
+    static final int VIRTUAL_NODES = 128;
+
+    private final List<String> shards;
+    // Ring points, sorted, and the index in shards of the owner of each point
+    private final long[] points;
+    private final int[] owners;
+
+    public ShardMap(List<String> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is needed");
+        }
+        List<String> sorted = new ArrayList<>(shards);
+        Collections.sort(sorted);
+        for (int i = 1; i < sorted.size(); i++) {
+            if (sorted.get(i).equals(sorted.get(i - 1))) {
+                throw new IllegalArgumentException("Duplicated shard " + sorted.get(i));
+            }
+        }
+        if (sorted.size() > 256) {
+            throw new IllegalArgumentException("At most 256 shards");
+        }
+        this.shards = Collections.unmodifiableList(sorted);
+
+        long[] keys = new long[sorted.size() * VIRTUAL_NODES];
+        for (int shard = 0; shard < sorted.size(); shard++) {
+            long seed = hash(sorted.get(shard).getBytes(StandardCharsets.UTF_8));
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                // Point in the high 56 bits, owner in the low 8, so sorting keeps both together
+                long point = mix(seed + node) & ~0xFFL;
+                keys[shard * VIRTUAL_NODES + node] = point | (shard & 0xFFL);
+            }
+        }
+        Arrays.sort(keys);
+        this.points = new long[keys.length];
+        this.owners = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            this.points[i] = keys[i] & ~0xFFL;
+            this.owners[i] = (int) (keys[i] & 0xFF);
+        }
+    }
+
+    /**
+     * @param channelId UUID
+     * @return String name of the shard holding the channel messages
+     */
+    public String shardFor(UUID channelId) {
+        long hash = mix(channelId.getMostSignificantBits() ^ mix(channelId.getLeastSignificantBits())) & ~0xFFL;
+        int position = Arrays.binarySearch(points, hash);
+        if (position < 0) {
+            position = -position - 1;
+        }
+        // Past the last point wraps around to the first one
+        return shards.get(owners[position == points.length ? 0 : position]);
+    }
+
+    /**
+     * @return List of shard names, sorted
+     */
+    public List<String> getShards() {
+        return shards;
+    }
+
+    public ShardMap withShard(String shard) {
+        List<String> next = new ArrayList<>(shards);
+        next.add(shard);
+        return new ShardMap(next);
+    }
+
+    public ShardMap withoutShard(String shard) {
+        List<String> next = new ArrayList<>(shards);
+        if (!next.remove(shard)) {
+            throw new IllegalArgumentException("Unknown shard " + shard);
+        }
+        return new ShardMap(next);
+    }
+
+    // FNV-1a
+    private static long hash(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // Murmur3 finalizer, spreads ids that differ only in a few bits (e.g. time-based UUIDs)
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "ShardMap{" + "shards=" + shards + '}';
+    }
+}
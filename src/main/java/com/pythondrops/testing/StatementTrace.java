@@ -0,0 +1,31 @@
+package com.pythondrops.testing;
+
+/**
+ * One statement execution recorded by {@link StatementTracer}.
+ */
+public class StatementTrace {
+    /** Epoch milliseconds when the statement finished */
+    public long timestamp;
+    /** SQL with literals replaced by ? and whitespace collapsed */
+    public String fingerprint;
+    /** Parameters bound for this execution, all rows of a batch included */
+    public int binds;
+    /** Rows added to the batch, 0 when not batched */
+    public int batchSize;
+    /** Rows read from the result set, or rows changed by an update, -1 if unknown */
+    public long rows;
+    /** Time to get the connection this statement ran on */
+    public long acquireMicros;
+    /** Time until the execute call returned */
+    public long executeMicros;
+    /** Execute plus reading the whole result set */
+    public long totalMicros;
+    /** Exception simple name, null on success */
+    public String error;
+    public boolean slow;
+
+    @Override
+    public String toString() {
+        return "StatementTrace{" + "timestamp=" + timestamp + ", fingerprint='" + fingerprint + '\'' + ", binds=" + binds + ", batchSize=" + batchSize + ", rows=" + rows + ", acquireMicros=" + acquireMicros + ", executeMicros=" + executeMicros + ", totalMicros=" + totalMicros + ", error=" + error + ", slow=" + slow + '}';
+    }
+}
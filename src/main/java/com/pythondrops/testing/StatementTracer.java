@@ -0,0 +1,454 @@
+package com.pythondrops.testing;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * Traces every prepared statement run through connections of another DataSource.
+ *
+ * For each execution it measures the connection acquire time, the execute call and the time
+ * until the result set is closed, and counts bound parameters and rows. Statements slower than
+ * {@link TraceConfig#slowThresholdMillis} are logged (java.util.logging, WARNING) and kept in a
+ * ring buffer together with the failed ones and a sample of the others, read with
+ * {@link #getRecentTraces()}.
+ * Traces are only built for kept statements, the others cost a few clock reads and counters.
+ */
+public class StatementTracer implements DataSource {
+
+    private static final Logger LOGGER = Logger.getLogger(StatementTracer.class.getName());
+    private static final int MAX_FINGERPRINTS = 1000;
+
+    private final DataSource dataSource;
+    private final TraceConfig config;
+    private final long slowThresholdNanos;
+    private final AtomicReferenceArray<StatementTrace> traces;
+    private final AtomicLong nextTrace = new AtomicLong();
+    private final AtomicLong statements = new AtomicLong();
+    private final LongAdder slowStatements = new LongAdder();
+    private final Map<String, String> fingerprints = new ConcurrentHashMap<>();
+
+    public StatementTracer(DataSource dataSource, TraceConfig config) {
+        if (config.bufferSize < 1 || config.sampleEvery < 0 || config.slowThresholdMillis < 0) {
+            throw new IllegalArgumentException("Invalid trace settings: " + config);
+        }
+        this.dataSource = dataSource;
+        this.config = config;
+        this.slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(config.slowThresholdMillis);
+        this.traces = new AtomicReferenceArray<>(config.bufferSize);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return getConnection(dataSource);
+    }
+
+    private Connection getConnection(DataSource source) throws SQLException {
+        long start = System.nanoTime();
+        Connection connection = source.getConnection();
+        long acquireNanos = System.nanoTime() - start;
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+          new Class<?>[] { Connection.class }, new TracedConnection(connection, acquireNanos));
+    }
+
+    /**
+     * Trace the statements of another data source too, such as a shard, in the same buffer and counters.
+     * @param other DataSource to trace
+     * @return DataSource handing out traced connections of other
+     */
+    public DataSource trace(DataSource other) {
+        return (DataSource) Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class<?>[] { DataSource.class },
+          (proxy, method, args) -> {
+              if (method.getName().equals("getConnection") && method.getParameterCount() == 0) {
+                  return getConnection(other);
+              }
+              return invoke(other, method, args);
+          });
+    }
+
+    /**
+     * @return kept traces, oldest first
+     */
+    public List<StatementTrace> getRecentTraces() {
+        long end = nextTrace.get();
+        long begin = Math.max(0, end - traces.length());
+        List<StatementTrace> recent = new ArrayList<>((int) (end - begin));
+        for (long i = begin; i < end; i++) {
+            StatementTrace trace = traces.get((int) (i % traces.length()));
+            if (trace != null) {
+                recent.add(trace);
+            }
+        }
+        return recent;
+    }
+
+    /**
+     * @return statements executed since this tracer was created
+     */
+    public long getStatementCount() {
+        return statements.get();
+    }
+
+    /**
+     * @return statements slower than the threshold since this tracer was created
+     */
+    public long getSlowStatementCount() {
+        return slowStatements.sum();
+    }
+
+    public TraceConfig getConfig() {
+        return config;
+    }
+
+    private void record(String sql, int binds, int batchSize, long rows, long acquireNanos, long executeNanos,
+                        long totalNanos, Throwable error) {
+        long count = statements.incrementAndGet();
+        boolean slow = acquireNanos + totalNanos >= slowThresholdNanos;
+        boolean sampled = config.sampleEvery > 0 && count % config.sampleEvery == 0;
+        if (!slow && !sampled && error == null) {
+            return;
+        }
+        StatementTrace trace = new StatementTrace();
+        trace.timestamp = System.currentTimeMillis();
+        trace.fingerprint = fingerprintOf(sql);
+        trace.binds = binds;
+        trace.batchSize = batchSize;
+        trace.rows = rows;
+        trace.acquireMicros = TimeUnit.NANOSECONDS.toMicros(acquireNanos);
+        trace.executeMicros = TimeUnit.NANOSECONDS.toMicros(executeNanos);
+        trace.totalMicros = TimeUnit.NANOSECONDS.toMicros(totalNanos);
+        trace.error = error == null ? null : error.getClass().getSimpleName();
+        trace.slow = slow;
+        if (slow) {
+            slowStatements.increment();
+            LOGGER.log(Level.WARNING, "Slow statement: {0}", trace);
+        }
+        traces.set((int) (nextTrace.getAndIncrement() % traces.length()), trace);
+    }
+
+    private String fingerprintOf(String sql) {
+        String fingerprint = fingerprints.get(sql);
+        if (fingerprint == null) {
+            fingerprint = fingerprint(sql);
+            if (fingerprints.size() < MAX_FINGERPRINTS) {
+                fingerprints.put(sql, fingerprint);
+            }
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Normalize a statement so executions that differ only in literal values look the same:
+     * string and number literals become ?, lists of ? become a single ? and whitespace runs a
+     * single space.
+     * @param sql String
+     * @return String fingerprint
+     */
+    static String fingerprint(String sql) {
+        StringBuilder fingerprint = new StringBuilder(sql.length());
+        int i = 0;
+        while (i < sql.length()) {
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"') {
+                i++;
+                while (i < sql.length() && (sql.charAt(i) != c || i + 1 < sql.length() && sql.charAt(i + 1) == c)) {
+                    // Backslash escapes and doubled quotes stay inside the literal
+                    i += sql.charAt(i) == '\\' || sql.charAt(i) == c ? 2 : 1;
+                }
+                i++;
+                fingerprint.append('?');
+            } else if (Character.isDigit(c) && (fingerprint.length() == 0 || !Character.isLetterOrDigit(last(fingerprint)) && last(fingerprint) != '_')) {
+                while (i < sql.length() && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                fingerprint.append('?');
+            } else if (Character.isWhitespace(c)) {
+                while (i < sql.length() && Character.isWhitespace(sql.charAt(i))) {
+                    i++;
+                }
+                if (fingerprint.length() > 0) {
+                    fingerprint.append(' ');
+                }
+            } else {
+                fingerprint.append(c);
+                i++;
+            }
+            // (?, ?, ?) -> (?)
+            int length = fingerprint.length();
+            if (length >= 4 && fingerprint.charAt(length - 1) == '?' && fingerprint.charAt(length - 2) == ' '
+              && fingerprint.charAt(length - 3) == ',' && fingerprint.charAt(length - 4) == '?') {
+                fingerprint.setLength(length - 3);
+            } else if (length >= 3 && fingerprint.charAt(length - 1) == '?' && fingerprint.charAt(length - 2) == ','
+              && fingerprint.charAt(length - 3) == '?') {
+                fingerprint.setLength(length - 2);
+            }
+        }
+        return fingerprint.toString().trim();
+    }
+
+    private static char last(StringBuilder builder) {
+        return builder.charAt(builder.length() - 1);
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Traced connections use the credentials of the traced data source");
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return dataSource.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        dataSource.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        dataSource.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return dataSource.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return dataSource.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return dataSource.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || dataSource.isWrapperFor(iface);
+    }
+
+    /**
+     * Hands out traced prepared statements; everything else goes straight to the connection.
+     */
+    private class TracedConnection implements InvocationHandler {
+        private final Connection connection;
+        private final long acquireNanos;
+
+        TracedConnection(Connection connection, long acquireNanos) {
+            this.connection = connection;
+            this.acquireNanos = acquireNanos;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Traced" + connection;
+                default:
+                    break;
+            }
+            Object result = StatementTracer.invoke(connection, method, args);
+            if (method.getName().equals("prepareStatement")) {
+                return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[] { PreparedStatement.class },
+                  new TracedStatement((PreparedStatement) result, (String) args[0], acquireNanos, (Connection) proxy));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Counts binds and batch rows between executions and times each execution.
+     */
+    private class TracedStatement implements InvocationHandler {
+        private final PreparedStatement statement;
+        private final String sql;
+        private final Connection connection;
+        // Only the first statement run on a connection waited for it
+        private long acquireNanos;
+        private int binds;
+        private int batchSize;
+        private TracedResultSet open;
+
+        TracedStatement(PreparedStatement statement, String sql, long acquireNanos, Connection connection) {
+            this.statement = statement;
+            this.sql = sql;
+            this.acquireNanos = acquireNanos;
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "executeQuery":
+                    finishOpen();
+                    long start = System.nanoTime();
+                    try {
+                        ResultSet resultSet = (ResultSet) StatementTracer.invoke(statement, method, args);
+                        open = new TracedResultSet(this, resultSet, start, System.nanoTime() - start);
+                        return Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class }, open);
+                    } catch (Throwable e) {
+                        finish(-1, start, System.nanoTime() - start, e);
+                        throw e;
+                    }
+                case "execute":
+                case "executeUpdate":
+                case "executeLargeUpdate":
+                case "executeBatch":
+                case "executeLargeBatch":
+                    finishOpen();
+                    start = System.nanoTime();
+                    try {
+                        Object result = StatementTracer.invoke(statement, method, args);
+                        finish(rowsChanged(result), start, System.nanoTime() - start, null);
+                        return result;
+                    } catch (Throwable e) {
+                        finish(-1, start, System.nanoTime() - start, e);
+                        throw e;
+                    }
+                case "addBatch":
+                    batchSize++;
+                    break;
+                case "close":
+                    finishOpen();
+                    break;
+                case "getConnection":
+                    return connection;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Traced" + statement;
+                default:
+                    if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                        binds++;
+                    }
+                    break;
+            }
+            return StatementTracer.invoke(statement, method, args);
+        }
+
+        private long rowsChanged(Object result) {
+            if (result instanceof Number) {
+                return ((Number) result).longValue();
+            }
+            long rows = 0;
+            if (result instanceof int[]) {
+                for (int count : (int[]) result) {
+                    rows += Math.max(0, count);
+                }
+            } else if (result instanceof long[]) {
+                for (long count : (long[]) result) {
+                    rows += Math.max(0, count);
+                }
+            } else {
+                return -1;
+            }
+            return rows;
+        }
+
+        void finish(long rows, long start, long executeNanos, Throwable error) {
+            record(sql, binds, batchSize, rows, acquireNanos, executeNanos, System.nanoTime() - start, error);
+            acquireNanos = 0;
+            binds = 0;
+            batchSize = 0;
+        }
+
+        private void finishOpen() {
+            if (open != null) {
+                open.finish();
+            }
+        }
+    }
+
+    /**
+     * Counts rows read; the execution is recorded when the result set is closed.
+     */
+    private static class TracedResultSet implements InvocationHandler {
+        private final TracedStatement statement;
+        private final ResultSet resultSet;
+        private final long start;
+        private final long executeNanos;
+        private long rows;
+        private boolean finished;
+
+        TracedResultSet(TracedStatement statement, ResultSet resultSet, long start, long executeNanos) {
+            this.statement = statement;
+            this.resultSet = resultSet;
+            this.start = start;
+            this.executeNanos = executeNanos;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "next":
+                    Object next = StatementTracer.invoke(resultSet, method, args);
+                    if (Boolean.TRUE.equals(next)) {
+                        rows++;
+                    }
+                    return next;
+                case "close":
+                    try {
+                        return StatementTracer.invoke(resultSet, method, args);
+                    } finally {
+                        finish();
+                    }
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Traced" + resultSet;
+                default:
+                    return StatementTracer.invoke(resultSet, method, args);
+            }
+        }
+
+        void finish() {
+            if (!finished) {
+                finished = true;
+                statement.open = null;
+                statement.finish(rows, start, executeNanos, null);
+            }
+        }
+    }
+}
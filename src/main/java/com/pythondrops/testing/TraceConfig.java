@@ -0,0 +1,18 @@
+package com.pythondrops.testing;
+
+/**
+ * Settings for {@link StatementTracer}.
+ */
+public class TraceConfig {
+    /** Statements taking at least this long, acquire time included, are logged and always kept */
+    public long slowThresholdMillis = 50;
+    /** Keep one in this many of the other statements, 0 keeps only the slow ones */
+    public int sampleEvery = 100;
+    /** Traces kept, the oldest are overwritten */
+    public int bufferSize = 512;
+
+    @Override
+    public String toString() {
+        return "TraceConfig{" + "slowThresholdMillis=" + slowThresholdMillis + ", sampleEvery=" + sampleEvery + ", bufferSize=" + bufferSize + '}';
+    }
+}
@@ -7,6 +7,14 @@ public class UserNotAllowedException extends Exception {
       this.message = message;
    }
 
+   /**
+    * @param writableStackTrace false for a cheap exception without stack trace
+    */
+   public UserNotAllowedException (String message, boolean writableStackTrace) {
+      super(null, null, false, writableStackTrace);
+      this.message = message;
+   }
+
    @Override
    public String getMessage() {
       return this.message;
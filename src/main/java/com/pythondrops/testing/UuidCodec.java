@@ -0,0 +1,54 @@
+package com.pythondrops.testing;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.UUID;
+
+/**
+ * Converts UUIDs to and from BINARY(16) column values, the layout of MySQL UUID_TO_BIN(uuid)
+ * without swap: most significant bits first, big endian.
+ *
+ * The two longs are read and written in place with a byte array view, no ByteBuffer and no
+ * string. Encoding always returns a new array: JDBC drivers keep a reference to bound arrays
+ * until the statement runs (and for every row of a batch), so a reused buffer would overwrite
+ * parameters that were not sent yet.
+ */
+public final class UuidCodec {
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private UuidCodec() {
+    }
+
+    /**
+     * @param id UUID
+     * @return byte[] new 16 byte array, to bind with setBytes
+     */
+    public static byte[] toBytes(UUID id) {
+        byte[] bytes = new byte[16];
+        write(id, bytes, 0);
+        return bytes;
+    }
+
+    public static void write(UUID id, byte[] bytes, int offset) {
+        LONGS.set(bytes, offset, id.getMostSignificantBits());
+        LONGS.set(bytes, offset + 8, id.getLeastSignificantBits());
+    }
+
+    /**
+     * @param bytes byte[] value of a BINARY(16) column, as returned by getBytes
+     * @return UUID or null for a NULL column
+     */
+    public static UUID fromBytes(byte[] bytes) {
+        return bytes == null ? null : read(bytes, 0);
+    }
+
+    public static UUID read(byte[] bytes, int offset) {
+        return new UUID(readLong(bytes, offset), readLong(bytes, offset + 8));
+    }
+
+    static long readLong(byte[] bytes, int offset) {
+        return (long) LONGS.get(bytes, offset);
+    }
+}
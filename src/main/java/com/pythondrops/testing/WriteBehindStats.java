@@ -0,0 +1,23 @@
+package com.pythondrops.testing;
+
+import java.util.Arrays;
+
+/**
+ * Point in time snapshot of a {@link WriteBehindWriter}.
+ */
+public class WriteBehindStats {
+    public int queueDepth;
+    public long groupsCommitted;
+    public long messagesCommitted;
+    public long groupsFailed;
+    public long rejected;
+    /** groupSizes[i] counts committed groups of 2^(i-1) + 1 to 2^i messages (groupSizes[0] counts single messages) */
+    public long[] groupSizes;
+    public long averageCommitMicros;
+    public long maxCommitMicros;
+
+    @Override
+    public String toString() {
+        return "WriteBehindStats{" + "queueDepth=" + queueDepth + ", groupsCommitted=" + groupsCommitted + ", messagesCommitted=" + messagesCommitted + ", groupsFailed=" + groupsFailed + ", rejected=" + rejected + ", groupSizes=" + Arrays.toString(groupSizes) + ", averageCommitMicros=" + averageCommitMicros + ", maxCommitMicros=" + maxCommitMicros + '}';
+    }
+}
@@ -0,0 +1,193 @@
+package com.pythondrops.testing;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Write-behind mode for {@link Database#postMessage}.
+ *
+ * Messages are queued and a single flusher thread stores them in groups, one transaction per
+ * group (see {@link Database#postMessages}). A group is written when it reaches
+ * {@code maxGroupSize} messages or when its oldest message waited {@code maxDelayMillis}.
+ * The future returned by {@link #postMessage} completes only after the group was committed.
+ */
+public class WriteBehindWriter implements AutoCloseable {
+
+    private static final int GROUP_SIZE_BUCKETS = 16;
+
+    private final Database database;
+    private final int capacity;
+    private final int maxGroupSize;
+    private final long maxDelayNanos;
+    private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    private final LongAdder groupsCommitted = new LongAdder();
+    private final LongAdder messagesCommitted = new LongAdder();
+    private final LongAdder groupsFailed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicLongArray groupSizes = new AtomicLongArray(GROUP_SIZE_BUCKETS);
+    private final LongAdder commitNanos = new LongAdder();
+    private final AtomicLong maxCommitNanos = new AtomicLong();
+
+    public WriteBehindWriter(Database database, int capacity, int maxGroupSize, long maxDelayMillis) {
+        if (capacity < 1 || maxGroupSize < 1 || maxDelayMillis < 0) {
+            throw new IllegalArgumentException("Invalid write-behind settings");
+        }
+        this.database = database;
+        this.capacity = capacity;
+        this.maxGroupSize = maxGroupSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.flusher = new Thread(this::run, "write-behind-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Queue a message to be stored.
+     * @param message Message to store
+     * @return CompletableFuture with the message UUID, completed once it is committed. It fails with
+     *         RejectedExecutionException when the queue is full or the writer is closed, or with the
+     *         SQLException that made its group fail
+     */
+    public CompletableFuture<UUID> postMessage(Message message) {
+        if (!running) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Write-behind writer is closed"));
+        }
+        if (depth.incrementAndGet() > capacity) {
+            depth.decrementAndGet();
+            rejected.increment();
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Write-behind queue is full: " + capacity));
+        }
+        Pending pending = new Pending(message);
+        queue.offer(pending);
+        // Closed meanwhile: the queue may already have been drained for the last time
+        if (!running && queue.remove(pending)) {
+            depth.decrementAndGet();
+            pending.future.completeExceptionally(new RejectedExecutionException("Write-behind writer is closed"));
+            return pending.future;
+        }
+        if (depth.get() >= maxGroupSize) {
+            LockSupport.unpark(flusher);
+        }
+        return pending.future;
+    }
+
+    private void run() {
+        try {
+            while (running || !queue.isEmpty()) {
+                Pending oldest = queue.peek();
+                if (oldest == null) {
+                    LockSupport.parkNanos(this, Math.max(maxDelayNanos, TimeUnit.MILLISECONDS.toNanos(1)));
+                    continue;
+                }
+                long wait = oldest.enqueuedAt + maxDelayNanos - System.nanoTime();
+                if (running && wait > 0 && depth.get() < maxGroupSize) {
+                    LockSupport.parkNanos(this, wait);
+                    continue;
+                }
+                flush();
+            }
+        } finally {
+            // Also when the flusher dies on an Error: nobody would complete the queued messages
+            running = false;
+            failQueued();
+        }
+    }
+
+    private void flush() {
+        List<Pending> group = new ArrayList<>(maxGroupSize);
+        List<Message> messages = new ArrayList<>(maxGroupSize);
+        Pending pending;
+        while (group.size() < maxGroupSize && (pending = queue.poll()) != null) {
+            group.add(pending);
+            messages.add(pending.message);
+        }
+        depth.addAndGet(-group.size());
+
+        long start = System.nanoTime();
+        try {
+            List<UUID> messageIds = database.postMessages(messages);
+            long elapsed = System.nanoTime() - start;
+            commitNanos.add(elapsed);
+            maxCommitNanos.accumulateAndGet(elapsed, Math::max);
+            groupsCommitted.increment();
+            messagesCommitted.add(group.size());
+            groupSizes.incrementAndGet(bucket(group.size()));
+            for (int i = 0; i < group.size(); i++) {
+                group.get(i).future.complete(messageIds.get(i));
+            }
+        } catch (SQLException | RuntimeException | Error e) {
+            groupsFailed.increment();
+            for (Pending failed : group) {
+                failed.future.completeExceptionally(e);
+            }
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+        }
+    }
+
+    private static int bucket(int groupSize) {
+        int bucket = 32 - Integer.numberOfLeadingZeros(groupSize - 1);
+        return Math.min(bucket, GROUP_SIZE_BUCKETS - 1);
+    }
+
+    public WriteBehindStats getStats() {
+        WriteBehindStats stats = new WriteBehindStats();
+        stats.queueDepth = depth.get();
+        stats.groupsCommitted = groupsCommitted.sum();
+        stats.messagesCommitted = messagesCommitted.sum();
+        stats.groupsFailed = groupsFailed.sum();
+        stats.rejected = rejected.sum();
+        stats.groupSizes = new long[GROUP_SIZE_BUCKETS];
+        for (int i = 0; i < GROUP_SIZE_BUCKETS; i++) {
+            stats.groupSizes[i] = groupSizes.get(i);
+        }
+        stats.averageCommitMicros = stats.groupsCommitted == 0 ? 0 : commitNanos.sum() / stats.groupsCommitted / 1000;
+        stats.maxCommitMicros = maxCommitNanos.get() / 1000;
+        return stats;
+    }
+
+    /**
+     * Stops accepting messages and writes the ones already queued.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(flusher);
+        flusher.join();
+        failQueued();
+    }
+
+    private void failQueued() {
+        Pending late;
+        while ((late = queue.poll()) != null) {
+            depth.decrementAndGet();
+            late.future.completeExceptionally(new RejectedExecutionException("Write-behind writer is closed"));
+        }
+    }
+
+    private static class Pending {
+        final Message message;
+        final long enqueuedAt = System.nanoTime();
+        final CompletableFuture<UUID> future = new CompletableFuture<>();
+
+        Pending(Message message) {
+            this.message = message;
+        }
+    }
+}
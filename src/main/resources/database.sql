@@ -24,15 +24,35 @@ create table USER_CHANNEL (
     primary key (user_id, channel_id)
 );
 
+-- O id da mensagem é um UUID versão 7 gerado pela aplicação (UuidGenerator), em ordem de tempo,
+-- então as novas linhas vão para o fim da chave primária.
 create table MESSAGE (
-    id binary(16) default (uuid_to_bin(uuid())) not null primary key,
+    id binary(16) not null primary key,
     author binary(16),
     title varchar(256),
     content text,
     channel_id binary(16),
-    CREATED_TIME TIMESTAMP
+    CREATED_TIME TIMESTAMP,
+    index MESSAGE_CHANNEL_TIME (channel_id, CREATED_TIME),
+    index MESSAGE_AUTHOR_TIME (author, CREATED_TIME)
+);
+
+-- Contadores por canal, atualizados na mesma transação de cada INSERT em MESSAGE, para não ter
+-- que fazer COUNT(*) e MAX(CREATED_TIME) em MESSAGE.
+create table CHANNEL_STATS (
+    channel_id binary(16) not null primary key,
+    message_count bigint not null,
+    last_message_time TIMESTAMP
 );
 
+-- Com shards (DatabaseWrapper com um Map de DataSources), este mesmo script roda em cada shard,
+-- mas só MESSAGE e CHANNEL_STATS são usadas neles: as linhas de cada canal ficam no shard escolhido
+-- pelo ShardMap, e CHANNEL, USER e USER_CHANNEL continuam no primário.
+
+-- Para criar os contadores de mensagens que já existiam antes da tabela CHANNEL_STATS:
+-- insert into CHANNEL_STATS (channel_id, message_count, last_message_time)
+--   select channel_id, count(*), max(CREATED_TIME) from MESSAGE group by channel_id;
+
 insert into CHANNEL (id, name, type, hidden) values (UUID_TO_BIN('347047f3-4bf4-11ee-a0e1-0242ac110002'), 'CANDIDATE SELECTION', 3, false);
 insert into CHANNEL (id, name, type, hidden) values (UUID_TO_BIN('34fbfb7f-4bf4-11ee-a0e1-0242ac110002'), 'HR team', 2, false);
 insert into USER (id, pii_content_link, suspended) values (UUID_TO_BIN('162b27bf-4c0b-11ee-a0e1-0242ac110002'), 'https://user.chat.com/internal/pii/93483', false);
@@ -44,3 +64,11 @@ insert into USER_CHANNEL (user_id, channel_id) values (UUID_TO_BIN('169cd497-4c0
 -- Para ler as mensagens:
 
 select BIN_TO_UUID(ID) AS MESSAGE_ID, BIN_TO_UUID(AUTHOR) as AUTHOR, TITLE, CONTENT, BIN_TO_UUID(CHANNEL_ID) AS CHANNEL_ID, CREATED_TIME FROM MESSAGE;
+
+-- Para ler um canal, página por página (o que DatabaseWrapper.getChannelMessages faz), partindo
+-- do CREATED_TIME e do ID da última mensagem da página anterior:
+
+select BIN_TO_UUID(ID) AS MESSAGE_ID, BIN_TO_UUID(AUTHOR) as AUTHOR, TITLE, CONTENT, CREATED_TIME FROM MESSAGE
+ WHERE CHANNEL_ID = UUID_TO_BIN('347047f3-4bf4-11ee-a0e1-0242ac110002')
+   AND CREATED_TIME <= '2023-09-05 12:00:00' AND (CREATED_TIME < '2023-09-05 12:00:00' OR ID < UUID_TO_BIN('018a6a38-0000-7000-8000-000000000000'))
+ ORDER BY CREATED_TIME DESC, ID DESC LIMIT 50;
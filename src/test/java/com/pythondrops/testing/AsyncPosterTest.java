@@ -0,0 +1,82 @@
+package com.pythondrops.testing;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.SQLException;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class AsyncPosterTest {
+
+    @Test
+    void postCompletesWithMessageId() throws Exception {
+        System.out.println("Testing an async post");
+
+        // Given:
+
+        DatabaseWrapper dbWrapper = mock(DatabaseWrapper.class);
+        UUID messageId = UUID.randomUUID();
+        when(dbWrapper.getMembership(any(), any())).thenReturn(Membership.ALLOWED);
+        when(dbWrapper.postMessage(any())).thenReturn(messageId);
+
+        try (AsyncPoster poster = new AsyncPoster(new DemoCode(dbWrapper), 2, 10)) {
+
+            // When:
+
+            CompletableFuture<UUID> posted = poster.postMessageToChannel(UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002"), UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002"), "TITLE", "Message content");
+            CompletableFuture<UUID> invalid = poster.postMessageToChannel(UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002"), UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002"), "", "Message content");
+
+            // Then:
+
+            assertEquals(messageId, posted.get(5, TimeUnit.SECONDS));
+            ExecutionException exception = assertThrows(ExecutionException.class, () -> invalid.get(5, TimeUnit.SECONDS));
+            assertTrue(exception.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    @Test
+    void postsAreRejectedWhenSaturated() throws Exception {
+        System.out.println("Testing async post back-pressure");
+
+        // Given:
+
+        DatabaseWrapper dbWrapper = mock(DatabaseWrapper.class);
+        CountDownLatch release = new CountDownLatch(1);
+        when(dbWrapper.getMembership(any(), any())).thenAnswer(x -> {
+            release.await();
+            return Membership.ALLOWED;
+        });
+        when(dbWrapper.postMessage(any())).thenReturn(UUID.randomUUID());
+
+        try (AsyncPoster poster = new AsyncPoster(new DemoCode(dbWrapper), 1, 2)) {
+            UUID userId = UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002");
+            UUID channelId = UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002");
+            CompletableFuture<UUID> first = poster.postMessageToChannel(userId, channelId, "TITLE", "Message content");
+            CompletableFuture<UUID> second = poster.postMessageToChannel(userId, channelId, "TITLE", "Message content");
+
+            // When:
+
+            CompletableFuture<UUID> third = poster.postMessageToChannel(userId, channelId, "TITLE", "Message content");
+
+            // Then:
+
+            ExecutionException exception = assertThrows(ExecutionException.class, third::get);
+            assertTrue(exception.getCause() instanceof RejectedExecutionException);
+            assertEquals(2, poster.getInFlight());
+            release.countDown();
+            first.get(5, TimeUnit.SECONDS);
+            second.get(5, TimeUnit.SECONDS);
+        }
+    }
+}
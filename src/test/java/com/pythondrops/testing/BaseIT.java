@@ -1,6 +1,7 @@
 package com.pythondrops.testing;
 
 import static java.lang.Math.abs;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
@@ -53,7 +54,7 @@ public class BaseIT {
     }
 
     @Test
-    public void itPostMessageOK() throws SQLException, UserNotAllowedException, ChannelNotAvailableException, ParseException {
+    public void itPostMessageOK() throws SQLException, UserNotAllowedException, ChannelNotAvailableException, RateLimitExceededException, ParseException {
         System.out.println("IT post a message with no errors");
 
         // Given:
@@ -85,6 +86,8 @@ public class BaseIT {
             String dbDate = rs.getString("CREATED_TIME");
             System.out.println(dbDate);
 
+            assertEquals(messageId.toString(), dbMessageId);
+
             SimpleDateFormat inputSDF = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
             inputSDF.setTimeZone(TimeZone.getTimeZone("UTC"));
             Date myDate = inputSDF.parse(dbDate);
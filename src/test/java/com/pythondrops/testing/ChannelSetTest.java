@@ -0,0 +1,67 @@
+package com.pythondrops.testing;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+class ChannelSetTest {
+
+    @Test
+    void behavesLikeAHashSet() {
+        System.out.println("Testing channel set membership");
+
+        // Given:
+
+        Set<UUID> expected = new HashSet<>();
+        ChannelSet channels = new ChannelSet();
+
+        // When:
+
+        for (int i = 0; i < 1000; i++) {
+            UUID channelId = UUID.randomUUID();
+            expected.add(channelId);
+            channels.add(channelId);
+        }
+        expected.add(new UUID(0, 0));
+        channels.add(new UUID(0, 0));
+
+        // Then:
+
+        assertEquals(expected.size(), channels.size());
+        assertEquals(expected, channels);
+        for (UUID channelId : expected) {
+            assertTrue(channels.contains(channelId));
+        }
+        assertFalse(channels.contains(UUID.randomUUID()));
+        assertFalse(channels.add(new UUID(0, 0)));
+    }
+
+    @Test
+    void addsBinaryColumnValues() {
+        System.out.println("Testing channel set with BINARY(16) values");
+
+        // Given:
+
+        UUID channelId = UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002");
+        byte[] channelIdBytes = ByteBuffer.allocate(16).putLong(channelId.getMostSignificantBits())
+          .putLong(channelId.getLeastSignificantBits()).array();
+        ChannelSet channels = new ChannelSet();
+
+        // When:
+
+        channels.add(channelIdBytes);
+
+        // Then:
+
+        assertTrue(channels.contains(channelId));
+        assertFalse(channels.add(channelId));
+        assertEquals(channelId, channels.iterator().next());
+    }
+}
@@ -0,0 +1,256 @@
+package com.pythondrops.testing;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.Test;
+
+class ConnectionPoolTest {
+
+    private PoolConfig config(int maxSize) {
+        PoolConfig config = new PoolConfig();
+        config.minSize = 0;
+        config.maxSize = maxSize;
+        config.acquireTimeoutMillis = 50;
+        return config;
+    }
+
+    @Test
+    void closedConnectionIsReused() throws SQLException {
+        System.out.println("Testing pooled connection reuse");
+
+        // Given:
+
+        DataSource dataSource = mock(DataSource.class);
+        Connection physical = mock(Connection.class);
+        when(dataSource.getConnection()).thenReturn(physical);
+        when(physical.isValid(anyInt())).thenReturn(true);
+
+        try (ConnectionPool pool = new ConnectionPool(dataSource, config(2))) {
+
+            // When:
+
+            try (Connection conn = pool.getConnection()) {
+                assertEquals(1, pool.getStats().active);
+            }
+            try (Connection conn = pool.getConnection()) {
+                conn.getAutoCommit();
+            }
+
+            // Then:
+
+            verify(dataSource, times(1)).getConnection();
+            verify(physical, times(0)).close();
+            PoolStats stats = pool.getStats();
+            assertEquals(0, stats.active);
+            assertEquals(1, stats.idle);
+            assertEquals(1, stats.total);
+            assertEquals(2, stats.acquireCount);
+        }
+    }
+
+    @Test
+    void exhaustedPoolTimesOut() throws SQLException {
+        System.out.println("Testing acquire timeout");
+
+        // Given:
+
+        DataSource dataSource = mock(DataSource.class);
+        when(dataSource.getConnection()).thenReturn(mock(Connection.class));
+
+        try (ConnectionPool pool = new ConnectionPool(dataSource, config(1))) {
+            Connection held = pool.getConnection();
+
+            // When:
+
+            assertThrows(SQLTransientConnectionException.class, pool::getConnection);
+
+            // Then:
+
+            assertEquals(1, pool.getStats().acquireTimeouts);
+            held.close();
+            assertTrue(held.isClosed());
+            assertThrows(SQLException.class, held::getAutoCommit);
+        }
+    }
+
+    @Test
+    void invalidIdleConnectionIsDiscarded() throws SQLException {
+        System.out.println("Testing validation on borrow");
+
+        // Given:
+
+        DataSource dataSource = mock(DataSource.class);
+        Connection stale = mock(Connection.class);
+        Connection fresh = mock(Connection.class);
+        when(dataSource.getConnection()).thenReturn(stale, fresh);
+        when(stale.isValid(anyInt())).thenReturn(false);
+
+        try (ConnectionPool pool = new ConnectionPool(dataSource, config(1))) {
+            pool.getConnection().close();
+
+            // When:
+
+            try (Connection conn = pool.getConnection()) {
+                conn.getAutoCommit();
+            }
+
+            // Then:
+
+            verify(stale).close();
+            verify(fresh).getAutoCommit();
+            assertEquals(1, pool.getStats().total);
+        }
+    }
+
+    @Test
+    void uncommittedTransactionIsRolledBackOnRelease() throws SQLException {
+        System.out.println("Testing transaction reset on release");
+
+        // Given:
+
+        DataSource dataSource = mock(DataSource.class);
+        Connection physical = mock(Connection.class);
+        when(dataSource.getConnection()).thenReturn(physical);
+        when(physical.getAutoCommit()).thenReturn(false);
+
+        try (ConnectionPool pool = new ConnectionPool(dataSource, config(1))) {
+
+            // When:
+
+            try (Connection conn = pool.getConnection()) {
+                conn.setAutoCommit(false);
+            }
+
+            // Then:
+
+            verify(physical).rollback();
+            verify(physical).setAutoCommit(true);
+        }
+    }
+
+    @Test
+    void preparedStatementsAreReused() throws SQLException {
+        System.out.println("Testing prepared statement reuse");
+
+        // Given:
+
+        DataSource dataSource = mock(DataSource.class);
+        Connection physical = mock(Connection.class);
+        when(dataSource.getConnection()).thenReturn(physical);
+        when(physical.isValid(anyInt())).thenReturn(true);
+        when(physical.prepareStatement("SELECT 1")).thenAnswer(x -> mock(PreparedStatement.class));
+
+        try (ConnectionPool pool = new ConnectionPool(dataSource, config(1))) {
+
+            // When:
+
+            PreparedStatement first;
+            try (Connection conn = pool.getConnection();
+                 PreparedStatement query = conn.prepareStatement("SELECT 1")) {
+                first = query;
+                query.setInt(1, 1);
+            }
+            try (Connection conn = pool.getConnection();
+                 PreparedStatement query = conn.prepareStatement("SELECT 1");
+                 PreparedStatement concurrent = conn.prepareStatement("SELECT 1")) {
+                query.executeQuery();
+                concurrent.executeQuery();
+            }
+
+            // Then:
+
+            assertTrue(first.isClosed());
+            assertThrows(SQLException.class, first::executeQuery);
+            verify(physical, times(2)).prepareStatement("SELECT 1");
+            PoolStats stats = pool.getStats();
+            assertEquals(2, stats.statementsPrepared);
+            assertEquals(1, stats.statementsReused);
+        }
+    }
+
+    @Test
+    void statementSettingsAreNotReused() throws SQLException {
+        System.out.println("Testing prepared statement settings reset");
+
+        // Given:
+
+        DataSource dataSource = mock(DataSource.class);
+        Connection physical = mock(Connection.class);
+        when(dataSource.getConnection()).thenReturn(physical);
+        when(physical.isValid(anyInt())).thenReturn(true);
+        PreparedStatement streaming = mock(PreparedStatement.class);
+        when(physical.prepareStatement("SELECT 1")).thenReturn(streaming);
+        PreparedStatement backwards = mock(PreparedStatement.class);
+        when(physical.prepareStatement("SELECT 2")).thenReturn(backwards, mock(PreparedStatement.class));
+
+        try (ConnectionPool pool = new ConnectionPool(dataSource, config(1))) {
+
+            // When:
+
+            try (Connection conn = pool.getConnection();
+                 PreparedStatement query = conn.prepareStatement("SELECT 1");
+                 PreparedStatement other = conn.prepareStatement("SELECT 2")) {
+                query.setFetchSize(Integer.MIN_VALUE);
+                query.setQueryTimeout(5);
+                other.setFetchDirection(ResultSet.FETCH_REVERSE);
+            }
+            try (Connection conn = pool.getConnection();
+                 PreparedStatement query = conn.prepareStatement("SELECT 1");
+                 PreparedStatement other = conn.prepareStatement("SELECT 2")) {
+                query.executeQuery();
+                other.executeQuery();
+            }
+
+            // Then:
+
+            verify(streaming).setFetchSize(0);
+            verify(streaming).setMaxRows(0);
+            verify(streaming).setQueryTimeout(0);
+            verify(backwards).close();
+            verify(physical, times(1)).prepareStatement("SELECT 1");
+            verify(physical, times(2)).prepareStatement("SELECT 2");
+        }
+    }
+
+    @Test
+    void minSizeIsOpenedAtStartup() throws Exception {
+        System.out.println("Testing pool prefill");
+
+        // Given:
+
+        DataSource dataSource = mock(DataSource.class);
+        when(dataSource.getConnection()).thenAnswer(x -> mock(Connection.class));
+        PoolConfig config = config(4);
+        config.minSize = 2;
+
+        // When:
+
+        try (ConnectionPool pool = new ConnectionPool(dataSource, config)) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (pool.getStats().idle < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            // Then:
+
+            assertEquals(2, pool.getStats().idle);
+            assertEquals(2, pool.getStats().total);
+            verify(dataSource, times(2)).getConnection();
+        }
+    }
+}
@@ -1,15 +1,29 @@
 package com.pythondrops.testing;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -29,14 +43,12 @@ class DatabaseWrapperTest {
         Connection connection = mock(Connection.class);
         when(dataSource.getConnection()).thenReturn(connection);
         PreparedStatement psUser = mock(PreparedStatement.class);
-        when(connection.prepareStatement("SELECT BIN_TO_UUID(U.ID) AS USER_ID, U.PII_CONTENT_LINK, U.SUSPENDED, BIN_TO_UUID(UC.CHANNEL_ID) AS CHANNEL_ID, UC.SUSPENDED as CHANNEL_SUSPENDED, C.HIDDEN FROM USER U INNER JOIN USER_CHANNEL UC ON U.ID = UC.USER_ID  INNER JOIN CHANNEL C ON UC.CHANNEL_ID = C.ID WHERE U.ID = ?"))
+        when(connection.prepareStatement("SELECT U.SUSPENDED, C.ID AS CHANNEL_ID, UC.SUSPENDED as CHANNEL_SUSPENDED, C.HIDDEN FROM USER U LEFT JOIN USER_CHANNEL UC ON UC.USER_ID = U.ID AND UC.CHANNEL_ID = ? LEFT JOIN CHANNEL C ON UC.CHANNEL_ID = C.ID WHERE U.ID = ?"))
           .thenReturn(psUser);
 
         ResultSet rsUser = mock(ResultSet.class);
         when(rsUser.getBoolean("SUSPENDED")).thenReturn(true);  // User is suspended
-        when(rsUser.getString( "USER_ID" )).thenReturn("162b27bf-4c0b-11ee-a0e1-0242ac110002");
-        when(rsUser.getString( "pii_content_link" )).thenReturn("content-link");
-        when(rsUser.getString( "CHANNEL_ID" )).thenReturn("347047f3-4bf4-11ee-a0e1-0242ac110002");
+        when(rsUser.getBytes( "CHANNEL_ID" )).thenReturn(uuidBytes("347047f3-4bf4-11ee-a0e1-0242ac110002"));
         when(rsUser.getBoolean( "CHANNEL_SUSPENDED" )).thenReturn(false);
 
         AtomicInteger first = new AtomicInteger();
@@ -64,7 +76,7 @@ class DatabaseWrapperTest {
         String actualMessage = exception.getMessage();
 
         assertTrue(actualMessage.contains(expectedMessage));
-        verify(spyDbWrapper).getUser(UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002"));
+        verify(spyDbWrapper).getMembership(UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002"), UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002"));
     }
 
     @Test
@@ -77,19 +89,18 @@ class DatabaseWrapperTest {
         Connection connection = mock(Connection.class);
         when(dataSource.getConnection()).thenReturn(connection);
         PreparedStatement psUser = mock(PreparedStatement.class);
-        when(connection.prepareStatement("SELECT BIN_TO_UUID(U.ID) AS USER_ID, U.PII_CONTENT_LINK, U.SUSPENDED, BIN_TO_UUID(UC.CHANNEL_ID) AS CHANNEL_ID, UC.SUSPENDED as CHANNEL_SUSPENDED, C.HIDDEN FROM USER U INNER JOIN USER_CHANNEL UC ON U.ID = UC.USER_ID  INNER JOIN CHANNEL C ON UC.CHANNEL_ID = C.ID WHERE U.ID = ?"))
+        when(connection.prepareStatement("SELECT U.PII_CONTENT_LINK, U.SUSPENDED, UC.CHANNEL_ID, UC.SUSPENDED as CHANNEL_SUSPENDED, C.HIDDEN FROM USER U INNER JOIN USER_CHANNEL UC ON U.ID = UC.USER_ID  INNER JOIN CHANNEL C ON UC.CHANNEL_ID = C.ID WHERE U.ID = ?"))
           .thenReturn(psUser);
 
         ResultSet rsUser = mock(ResultSet.class);
         when(rsUser.getBoolean("SUSPENDED")).thenReturn(false);
-        when(rsUser.getString( "USER_ID" )).thenReturn("162b27bf-4c0b-11ee-a0e1-0242ac110002");
         when(rsUser.getString( "pii_content_link" )).thenReturn("content-link");
         AtomicInteger firstChannelId = new AtomicInteger();
-        when(rsUser.getString( "CHANNEL_ID" )).thenAnswer(x -> {
+        when(rsUser.getBytes( "CHANNEL_ID" )).thenAnswer(x -> {
             if (firstChannelId.getAndIncrement() > 0) {
-                return "347047f3-4bf4-11ee-a0e1-e242ac110003";  // Second channel -> Should not be on the list
+                return uuidBytes("347047f3-4bf4-11ee-a0e1-e242ac110003");  // Second channel -> Should not be on the list
             }
-            return "347047f3-4bf4-11ee-a0e1-0242ac110002";  // first channel
+            return uuidBytes("347047f3-4bf4-11ee-a0e1-0242ac110002");  // first channel
         });
 
         AtomicInteger firstChannelHidden = new AtomicInteger();
@@ -141,19 +152,18 @@ class DatabaseWrapperTest {
         Connection connection = mock(Connection.class);
         when(dataSource.getConnection()).thenReturn(connection);
         PreparedStatement psUser = mock(PreparedStatement.class);
-        when(connection.prepareStatement("SELECT BIN_TO_UUID(U.ID) AS USER_ID, U.PII_CONTENT_LINK, U.SUSPENDED, BIN_TO_UUID(UC.CHANNEL_ID) AS CHANNEL_ID, UC.SUSPENDED as CHANNEL_SUSPENDED, C.HIDDEN FROM USER U INNER JOIN USER_CHANNEL UC ON U.ID = UC.USER_ID  INNER JOIN CHANNEL C ON UC.CHANNEL_ID = C.ID WHERE U.ID = ?"))
+        when(connection.prepareStatement("SELECT U.PII_CONTENT_LINK, U.SUSPENDED, UC.CHANNEL_ID, UC.SUSPENDED as CHANNEL_SUSPENDED, C.HIDDEN FROM USER U INNER JOIN USER_CHANNEL UC ON U.ID = UC.USER_ID  INNER JOIN CHANNEL C ON UC.CHANNEL_ID = C.ID WHERE U.ID = ?"))
           .thenReturn(psUser);
 
         ResultSet rsUser = mock(ResultSet.class);
         when(rsUser.getBoolean("SUSPENDED")).thenReturn(false);
-        when(rsUser.getString( "USER_ID" )).thenReturn("162b27bf-4c0b-11ee-a0e1-0242ac110002");
         when(rsUser.getString( "pii_content_link" )).thenReturn("content-link");
         AtomicInteger firstChannelId = new AtomicInteger();
-        when(rsUser.getString( "CHANNEL_ID" )).thenAnswer(x -> {
+        when(rsUser.getBytes( "CHANNEL_ID" )).thenAnswer(x -> {
             if (firstChannelId.getAndIncrement() > 0) {
-                return "347047f3-4bf4-11ee-a0e1-e242ac110003";  // Second channel -> Should not be on the list - user is suspended
+                return uuidBytes("347047f3-4bf4-11ee-a0e1-e242ac110003");  // Second channel -> Should not be on the list - user is suspended
             }
-            return "347047f3-4bf4-11ee-a0e1-0242ac110002";  // first channel
+            return uuidBytes("347047f3-4bf4-11ee-a0e1-0242ac110002");  // first channel
         });
 
         AtomicInteger firstChannelSuspended = new AtomicInteger();
@@ -193,4 +203,660 @@ class DatabaseWrapperTest {
         assertFalse(user.channels.contains(UUID.fromString("347047f3-4bf4-11ee-a0e1-e242ac110003")));
         verify(spyDbWrapper).getUser(UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testMembershipInHiddenChannel() throws SQLException {
+        System.out.println("Testing membership in a hidden channel");
+
+        // Given:
+
+        DataSource dataSource = mock(DataSource.class);
+        Connection connection = mock(Connection.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        PreparedStatement psMembership = mock(PreparedStatement.class);
+        when(connection.prepareStatement("SELECT U.SUSPENDED, C.ID AS CHANNEL_ID, UC.SUSPENDED as CHANNEL_SUSPENDED, C.HIDDEN FROM USER U LEFT JOIN USER_CHANNEL UC ON UC.USER_ID = U.ID AND UC.CHANNEL_ID = ? LEFT JOIN CHANNEL C ON UC.CHANNEL_ID = C.ID WHERE U.ID = ?"))
+          .thenReturn(psMembership);
+
+        ResultSet rsMembership = mock(ResultSet.class);
+        when(rsMembership.next()).thenReturn(true);
+        when(rsMembership.getBoolean("SUSPENDED")).thenReturn(false);
+        when(rsMembership.getBytes("CHANNEL_ID")).thenReturn(uuidBytes("347047f3-4bf4-11ee-a0e1-0242ac110002"));
+        when(rsMembership.getBoolean("CHANNEL_SUSPENDED")).thenReturn(false);
+        when(rsMembership.getBoolean("HIDDEN")).thenReturn(true);
+        when(psMembership.executeQuery()).thenReturn(rsMembership);
+
+        DatabaseWrapper dbWrapper = new DatabaseWrapper(dataSource);
+
+        // When:
+
+        Membership membership = dbWrapper.getMembership(UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002"), UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002"));
+
+        // Then:
+
+        assertEquals(Membership.CHANNEL_NOT_AVAILABLE, membership);
+        verify(psMembership).setBytes(1, uuidBytes("347047f3-4bf4-11ee-a0e1-0242ac110002"));
+        verify(psMembership).setBytes(2, uuidBytes("162b27bf-4c0b-11ee-a0e1-0242ac110002"));
+    }
+
+    @Test
+    public void testCachedChannel() throws SQLException {
+        System.out.println("Testing channel cache");
+
+        // Given:
+
+        DataSource dataSource = mock(DataSource.class);
+        Connection connection = mock(Connection.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        PreparedStatement psChannel = mock(PreparedStatement.class);
+        when(connection.prepareStatement("SELECT ID, NAME, TYPE, HIDDEN FROM CHANNEL WHERE ID = ?")).thenReturn(psChannel);
+        PreparedStatement psUpdate = mock(PreparedStatement.class);
+        when(connection.prepareStatement("UPDATE CHANNEL SET NAME = ?, TYPE = ?, HIDDEN = ? WHERE ID = ?")).thenReturn(psUpdate);
+        when(psUpdate.executeUpdate()).thenReturn(1);
+
+        ResultSet rsChannel = mock(ResultSet.class);
+        when(rsChannel.next()).thenReturn(true);
+        when(rsChannel.getBytes("ID")).thenReturn(uuidBytes("347047f3-4bf4-11ee-a0e1-0242ac110002"));
+        when(rsChannel.getString("NAME")).thenReturn("CANDIDATE SELECTION");
+        when(rsChannel.getInt("TYPE")).thenReturn(3);
+        when(psChannel.executeQuery()).thenReturn(rsChannel);
+
+        DatabaseWrapper dbWrapper = new DatabaseWrapper(dataSource);
+        dbWrapper.enableChannelCache(10, 60000);
+        UUID channelId = UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002");
+
+        // When:
+
+        Channel channel = dbWrapper.getChannel(channelId);
+        Channel cached = dbWrapper.getChannel(channelId);
+        cached.hidden = true;
+        dbWrapper.updateChannel(cached);
+        dbWrapper.getChannel(channelId);
+
+        // Then:
+
+        assertEquals(channelId, channel.id);
+        assertEquals("CANDIDATE SELECTION", channel.name);
+        assertEquals(3, channel.type);
+        verify(psChannel, times(2)).executeQuery();
+        assertEquals(1, dbWrapper.getChannelCacheStats().hits);
+    }
+
+    @Test
+    public void testCachedChannelUpdatedDuringRead() throws SQLException {
+        System.out.println("Testing channel cache with a concurrent update");
+
+        // Given:
+
+        UUID channelId = UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002");
+        DataSource dataSource = mock(DataSource.class);
+        Connection connection = mock(Connection.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        PreparedStatement psUpdate = mock(PreparedStatement.class);
+        when(connection.prepareStatement("UPDATE CHANNEL SET NAME = ?, TYPE = ?, HIDDEN = ? WHERE ID = ?")).thenReturn(psUpdate);
+        when(psUpdate.executeUpdate()).thenReturn(1);
+
+        DatabaseWrapper dbWrapper = new DatabaseWrapper(dataSource);
+        dbWrapper.enableChannelCache(10, 60000);
+        Channel renamed = new Channel();
+        renamed.id = channelId;
+        renamed.name = "HR team";
+
+        // The first read gets the old row, and the update commits before it ends
+        PreparedStatement psChannel = mock(PreparedStatement.class);
+        when(connection.prepareStatement("SELECT ID, NAME, TYPE, HIDDEN FROM CHANNEL WHERE ID = ?")).thenReturn(psChannel);
+        AtomicInteger reads = new AtomicInteger();
+        when(psChannel.executeQuery()).thenAnswer(x -> {
+            ResultSet rs = mock(ResultSet.class);
+            when(rs.next()).thenReturn(true);
+            when(rs.getBytes("ID")).thenReturn(UuidCodec.toBytes(channelId));
+            if (reads.getAndIncrement() == 0) {
+                when(rs.getString("NAME")).thenReturn("CANDIDATE SELECTION");
+                dbWrapper.updateChannel(renamed);
+            } else {
+                when(rs.getString("NAME")).thenReturn("HR team");
+            }
+            return rs;
+        });
+
+        // When:
+
+        Channel racing = dbWrapper.getChannel(channelId);
+        Channel after = dbWrapper.getChannel(channelId);
+
+        // Then:
+
+        assertEquals("CANDIDATE SELECTION", racing.name);
+        assertEquals("HR team", after.name);
+        assertEquals(2, reads.get());
+    }
+
+    @Test
+    public void testPostMessagesInBatches() throws SQLException {
+        System.out.println("Testing batched message insert");
+
+        // Given:
+
+        DataSource dataSource = mock(DataSource.class);
+        Connection connection = mock(Connection.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        PreparedStatement psInsert = mock(PreparedStatement.class);
+        when(connection.prepareStatement("INSERT INTO MESSAGE (ID, AUTHOR, TITLE, CONTENT, CHANNEL_ID, CREATED_TIME) VALUES (?, ?, ?, ?, ?, NOW())"))
+          .thenReturn(psInsert);
+        PreparedStatement psStats = mock(PreparedStatement.class);
+        when(connection.prepareStatement("INSERT INTO CHANNEL_STATS (CHANNEL_ID, MESSAGE_COUNT, LAST_MESSAGE_TIME) VALUES (?, ?, NOW()) ON DUPLICATE KEY UPDATE MESSAGE_COUNT = MESSAGE_COUNT + VALUES(MESSAGE_COUNT), LAST_MESSAGE_TIME = GREATEST(LAST_MESSAGE_TIME, VALUES(LAST_MESSAGE_TIME))"))
+          .thenReturn(psStats);
+
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < DatabaseWrapper.BATCH_SIZE + 1; i++) {
+            Message message = new Message();
+            message.author = UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002");
+            message.channelId = UUID.fromString(i % 2 == 0 ? "347047f3-4bf4-11ee-a0e1-0242ac110002" : "34fbfb7f-4bf4-11ee-a0e1-0242ac110002");
+            message.title = "TITLE " + i;
+            message.content = "Message content";
+            messages.add(message);
+        }
+
+        DatabaseWrapper dbWrapper = new DatabaseWrapper(dataSource);
+
+        // When:
+
+        List<UUID> messageIds = dbWrapper.postMessages(messages);
+
+        // Then:
+
+        assertEquals(messages.size(), messageIds.size());
+        assertEquals(messages.size(), new HashSet<>(messageIds).size());
+        verify(psInsert, times(messages.size())).addBatch();
+        verify(psInsert, times(2)).executeBatch();
+        verify(connection).setAutoCommit(false);
+        verify(connection).commit();
+        verify(psStats).setInt(2, DatabaseWrapper.BATCH_SIZE / 2 + 1);
+        verify(psStats).setInt(2, DatabaseWrapper.BATCH_SIZE / 2);
+        verify(psStats, times(2)).addBatch();
+        verify(psStats).executeBatch();
+    }
+
+    @Test
+    public void testChannelMessagesNextPage() throws SQLException {
+        System.out.println("Testing channel timeline keyset pagination");
+
+        // Given:
+
+        DataSource dataSource = mock(DataSource.class);
+        Connection connection = mock(Connection.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        PreparedStatement psPage = mock(PreparedStatement.class);
+        when(connection.prepareStatement("SELECT ID, AUTHOR, TITLE, CONTENT, CHANNEL_ID, CREATED_TIME FROM MESSAGE WHERE CHANNEL_ID = ? AND CREATED_TIME <= ? AND (CREATED_TIME < ? OR ID < ?) ORDER BY CREATED_TIME DESC, ID DESC LIMIT ?"))
+          .thenReturn(psPage);
+
+        Timestamp createdTime = new Timestamp(1693915200000L);
+        ResultSet rsPage = mock(ResultSet.class);
+        when(rsPage.next()).thenReturn(true, true, false);
+        when(rsPage.getBytes("ID")).thenReturn(uuidBytes("018a6a38-0000-7002-8000-000000000000"), uuidBytes("018a6a38-0000-7001-8000-000000000000"));
+        when(rsPage.getBytes("AUTHOR")).thenReturn(uuidBytes("162b27bf-4c0b-11ee-a0e1-0242ac110002"));
+        when(rsPage.getBytes("CHANNEL_ID")).thenReturn(uuidBytes("347047f3-4bf4-11ee-a0e1-0242ac110002"));
+        when(rsPage.getString("TITLE")).thenReturn("TITLE 2", "TITLE 1");
+        when(rsPage.getTimestamp("CREATED_TIME")).thenReturn(createdTime);
+        when(psPage.executeQuery()).thenReturn(rsPage);
+
+        Message lastOfPreviousPage = new Message();
+        lastOfPreviousPage.id = UUID.fromString("018a6a38-0000-7003-8000-000000000000");
+        lastOfPreviousPage.createdTime = createdTime;
+
+        DatabaseWrapper dbWrapper = new DatabaseWrapper(dataSource);
+
+        // When:
+
+        List<Message> page = dbWrapper.getChannelMessages(UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002"), lastOfPreviousPage, 2);
+
+        // Then:
+
+        assertEquals(2, page.size());
+        assertEquals(UUID.fromString("018a6a38-0000-7002-8000-000000000000"), page.get(0).id);
+        assertEquals("TITLE 1", page.get(1).title);
+        assertEquals(UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002"), page.get(1).author);
+        assertEquals(createdTime, page.get(1).createdTime);
+        verify(psPage).setFetchSize(Integer.MIN_VALUE);
+        verify(psPage).setBytes(1, uuidBytes("347047f3-4bf4-11ee-a0e1-0242ac110002"));
+        verify(psPage).setTimestamp(2, createdTime);
+        verify(psPage).setTimestamp(3, createdTime);
+        verify(psPage).setBytes(4, uuidBytes("018a6a38-0000-7003-8000-000000000000"));
+        verify(psPage).setInt(5, 2);
+        assertThrows(IllegalArgumentException.class, () -> dbWrapper.getChannelMessages(UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002"), null, Database.MAX_PAGE_SIZE + 1));
+    }
+
+    @Test
+    public void testExportChannelMessages() throws SQLException, IOException {
+        System.out.println("Testing channel export");
+
+        // Given:
+
+        DataSource dataSource = mock(DataSource.class);
+        Connection connection = mock(Connection.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        PreparedStatement psExport = mock(PreparedStatement.class);
+        when(connection.prepareStatement("SELECT ID, AUTHOR, TITLE, CONTENT, CHANNEL_ID, CREATED_TIME FROM MESSAGE WHERE CHANNEL_ID = ? ORDER BY CREATED_TIME, ID",
+          ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)).thenReturn(psExport);
+
+        ResultSet rsExport = mock(ResultSet.class);
+        when(rsExport.next()).thenReturn(true, true, false);
+        when(rsExport.getBytes("ID")).thenReturn(uuidBytes("018a6a38-0000-7001-8000-000000000000"), uuidBytes("018a6a38-0000-7002-8000-000000000000"));
+        // AUTHOR can be NULL in the schema
+        when(rsExport.getBytes("AUTHOR")).thenReturn(uuidBytes("162b27bf-4c0b-11ee-a0e1-0242ac110002"), (byte[]) null);
+        when(rsExport.getBytes("CHANNEL_ID")).thenReturn(uuidBytes("347047f3-4bf4-11ee-a0e1-0242ac110002"));
+        when(rsExport.getString("TITLE")).thenReturn("Título 1", (String) null);
+        when(rsExport.getString("CONTENT")).thenReturn("Message content");
+        when(rsExport.getTimestamp("CREATED_TIME")).thenReturn(new Timestamp(1693915200000L));
+        when(psExport.executeQuery()).thenReturn(rsExport);
+
+        DatabaseWrapper dbWrapper = new DatabaseWrapper(dataSource);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // When:
+
+        long exported = dbWrapper.exportChannelMessages(UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002"), out);
+
+        // Then:
+
+        assertEquals(2, exported);
+        verify(psExport).setFetchSize(Integer.MIN_VALUE);
+        MessageExport.Reader reader = new MessageExport.Reader(new ByteArrayInputStream(out.toByteArray()));
+        Message first = reader.next();
+        assertEquals(UUID.fromString("018a6a38-0000-7001-8000-000000000000"), first.id);
+        assertEquals(UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002"), first.author);
+        assertEquals(UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002"), first.channelId);
+        assertEquals(1693915200000L, first.createdTime.getTime());
+        assertEquals("Título 1", first.title);
+        assertEquals("Message content", first.content);
+        Message second = reader.next();
+        assertEquals(UUID.fromString("018a6a38-0000-7002-8000-000000000000"), second.id);
+        assertNull(second.author);
+        assertEquals(UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002"), second.channelId);
+        assertEquals("Message content", second.content);
+        assertNull(second.title);
+        assertNull(reader.next());
+    }
+
+    private static byte[] uuidBytes(String uuid) {
+        UUID id = UUID.fromString(uuid);
+        return ByteBuffer.allocate(16).putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits()).array();
+    }
+
+    @Test
+    public void testChannelReadFromReplica() throws SQLException {
+        System.out.println("Testing replica routing");
+
+        // Given:
+
+        UUID channelId = UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002");
+        DataSource primary = mock(DataSource.class);
+        Connection primaryConnection = mockChannelConnection(channelId, "primary");
+        when(primary.getConnection()).thenReturn(primaryConnection);
+        DataSource down = mock(DataSource.class);
+        when(down.getConnection()).thenThrow(new SQLException("Connection refused"));
+        DataSource replica = mock(DataSource.class);
+        Connection replicaConnection = mockChannelConnection(channelId, "replica");
+        when(replica.getConnection()).thenReturn(replicaConnection);
+
+        DatabaseWrapper dbWrapper = new DatabaseWrapper(primary, List.of(down, replica), new ReplicaConfig());
+
+        // When:
+
+        Channel first = dbWrapper.getChannel(channelId);
+        Channel second = dbWrapper.getChannel(channelId);
+
+        // Then:
+
+        assertEquals("replica", first.name);
+        assertEquals("replica", second.name);
+        verify(down, times(1)).getConnection();
+        verify(primary, times(0)).getConnection();
+        ReplicaRouter router = dbWrapper.getReplicaRouter();
+        assertEquals(2, router.getReplicaReads());
+        assertEquals(1, router.getFailures());
+    }
+
+    @Test
+    public void testReplicaReadsTraced() throws SQLException {
+        System.out.println("Testing tracing with replicas");
+
+        // Given:
+
+        UUID channelId = UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002");
+        DataSource primary = mock(DataSource.class);
+        DataSource replica = mock(DataSource.class);
+        Connection replicaConnection = mockChannelConnection(channelId, "replica");
+        when(replica.getConnection()).thenReturn(replicaConnection);
+
+        DatabaseWrapper dbWrapper = new DatabaseWrapper(primary, List.of(replica), new ReplicaConfig());
+        TraceConfig traceConfig = new TraceConfig();
+        traceConfig.sampleEvery = 1;
+        StatementTracer tracer = dbWrapper.enableTracing(traceConfig);
+
+        // When:
+
+        Channel channel = dbWrapper.getChannel(channelId);
+
+        // Then:
+
+        assertEquals("replica", channel.name);
+        verify(primary, times(0)).getConnection();
+        assertEquals(1, tracer.getStatementCount());
+        assertEquals("SELECT ID, NAME, TYPE, HIDDEN FROM CHANNEL WHERE ID = ?", tracer.getRecentTraces().get(0).fingerprint);
+    }
+
+    @Test
+    public void testChannelReadFromPrimaryAfterWrite() throws SQLException {
+        System.out.println("Testing read-your-writes with replicas");
+
+        // Given:
+
+        UUID channelId = UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002");
+        DataSource primary = mock(DataSource.class);
+        Connection primaryConnection = mockChannelConnection(channelId, "primary");
+        when(primary.getConnection()).thenReturn(primaryConnection);
+        PreparedStatement psUpdate = mock(PreparedStatement.class);
+        when(primaryConnection.prepareStatement("UPDATE CHANNEL SET NAME = ?, TYPE = ?, HIDDEN = ? WHERE ID = ?")).thenReturn(psUpdate);
+        when(psUpdate.executeUpdate()).thenReturn(1);
+        DataSource replica = mock(DataSource.class);
+        Connection replicaConnection = mockChannelConnection(channelId, "replica");
+        when(replica.getConnection()).thenReturn(replicaConnection);
+
+        DatabaseWrapper dbWrapper = new DatabaseWrapper(primary, List.of(replica), new ReplicaConfig());
+        Channel channel = new Channel();
+        channel.id = channelId;
+        channel.name = "primary";
+
+        // When:
+
+        dbWrapper.updateChannel(channel);
+        Channel read = dbWrapper.getChannel(channelId);
+
+        // Then:
+
+        assertEquals("primary", read.name);
+        verify(replica, times(0)).getConnection();
+        assertEquals(0, dbWrapper.getReplicaRouter().getReplicaReads());
+    }
+
+    @Test
+    public void testShardedMessages() throws SQLException {
+        System.out.println("Testing sharded messages");
+
+        // Given:
+
+        UUID authorId = UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002");
+        UUID channelId = UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002");
+        DataSource primary = mock(DataSource.class);
+        Map<String, DataSource> shards = new HashMap<>();
+        Map<String, Connection> connections = new HashMap<>();
+        long time = 1_700_000_000_000L;
+        for (String shard : List.of("shard-a", "shard-b")) {
+            DataSource dataSource = mock(DataSource.class);
+            Connection connection = mock(Connection.class);
+            when(dataSource.getConnection()).thenReturn(connection);
+            when(connection.prepareStatement(anyString())).thenReturn(mock(PreparedStatement.class));
+            // Each shard has two messages of the author, at interleaved times
+            List<Timestamp> times = List.of(new Timestamp(time + 20), new Timestamp(time));
+            time += 10;
+            PreparedStatement psAuthor = mock(PreparedStatement.class);
+            when(connection.prepareStatement("SELECT ID, AUTHOR, TITLE, CONTENT, CHANNEL_ID, CREATED_TIME FROM MESSAGE WHERE AUTHOR = ? ORDER BY CREATED_TIME DESC, ID DESC LIMIT ?")).thenReturn(psAuthor);
+            ResultSet rsAuthor = mock(ResultSet.class);
+            AtomicInteger row = new AtomicInteger(-1);
+            when(rsAuthor.next()).thenAnswer(x -> row.incrementAndGet() < times.size());
+            when(rsAuthor.getBytes("ID")).thenAnswer(x -> UuidCodec.toBytes(UuidGenerator.timeOrdered()));
+            when(rsAuthor.getBytes("AUTHOR")).thenReturn(UuidCodec.toBytes(authorId));
+            when(rsAuthor.getString("TITLE")).thenReturn(shard);
+            when(rsAuthor.getTimestamp("CREATED_TIME")).thenAnswer(x -> times.get(row.get()));
+            when(psAuthor.executeQuery()).thenReturn(rsAuthor);
+            shards.put(shard, dataSource);
+            connections.put(shard, connection);
+        }
+
+        try (DatabaseWrapper dbWrapper = new DatabaseWrapper(primary, shards)) {
+            StatementTracer tracer = dbWrapper.enableTracing(new TraceConfig());
+            Message message = new Message();
+            message.author = authorId;
+            message.channelId = channelId;
+            message.title = "TITLE";
+            message.content = "Message content";
+
+            // When:
+
+            dbWrapper.postMessage(message);
+            List<Message> latest = dbWrapper.getAuthorMessages(authorId, 3);
+
+            // Then:
+
+            String owner = dbWrapper.getShardMap().shardFor(channelId);
+            String other = owner.equals("shard-a") ? "shard-b" : "shard-a";
+            verify(connections.get(owner)).prepareStatement("INSERT INTO MESSAGE (ID, AUTHOR, TITLE, CONTENT, CHANNEL_ID, CREATED_TIME) VALUES (?, ?, ?, ?, ?, NOW())");
+            verify(connections.get(owner)).commit();
+            verify(connections.get(other), times(0)).prepareStatement("INSERT INTO MESSAGE (ID, AUTHOR, TITLE, CONTENT, CHANNEL_ID, CREATED_TIME) VALUES (?, ?, ?, ?, ?, NOW())");
+            verify(primary, times(0)).getConnection();
+            // INSERT and CHANNEL_STATS upsert on the owner, the author query on both shards
+            assertEquals(4, tracer.getStatementCount());
+
+            assertEquals(3, latest.size());
+            assertEquals("shard-b", latest.get(0).title);
+            assertEquals("shard-a", latest.get(1).title);
+            assertEquals("shard-b", latest.get(2).title);
+            assertEquals(1_700_000_000_030L, latest.get(0).createdTime.getTime());
+            assertEquals(1_700_000_000_010L, latest.get(2).createdTime.getTime());
+        }
+    }
+
+    @Test
+    public void testRebalanceResumesAfterFailure() throws SQLException {
+        System.out.println("Testing an interrupted rebalance");
+
+        // Given:
+
+        ShardMap previous = new ShardMap(List.of("shard-a", "shard-b"));
+        ShardMap target = previous.withShard("shard-c");
+        UUID channelId = UuidGenerator.timeOrdered();
+        while (previous.shardFor(channelId).equals(target.shardFor(channelId))) {
+            channelId = UuidGenerator.timeOrdered();
+        }
+        byte[] channelUuidBytes = UuidCodec.toBytes(channelId);
+
+        DataSource primary = mock(DataSource.class);
+        Connection primaryConnection = mock(Connection.class);
+        when(primary.getConnection()).thenReturn(primaryConnection);
+        PreparedStatement psChannels = mock(PreparedStatement.class);
+        when(primaryConnection.prepareStatement("SELECT ID FROM CHANNEL")).thenReturn(psChannels);
+        when(psChannels.executeQuery()).thenAnswer(x -> {
+            ResultSet rs = mock(ResultSet.class);
+            when(rs.next()).thenReturn(true, false);
+            when(rs.getBytes("ID")).thenReturn(channelUuidBytes);
+            return rs;
+        });
+
+        Map<String, DataSource> shards = new HashMap<>();
+        Map<String, Connection> connections = new HashMap<>();
+        for (String shard : List.of("shard-a", "shard-b", "shard-c")) {
+            DataSource dataSource = mock(DataSource.class);
+            Connection connection = mock(Connection.class);
+            when(dataSource.getConnection()).thenReturn(connection);
+            PreparedStatement statement = mock(PreparedStatement.class);
+            when(statement.executeQuery()).thenAnswer(x -> mock(ResultSet.class));
+            when(connection.prepareStatement(anyString())).thenReturn(statement);
+            when(connection.prepareStatement(anyString(), anyInt(), anyInt())).thenReturn(statement);
+            shards.put(shard, dataSource);
+            connections.put(shard, connection);
+        }
+        Connection source = connections.get(previous.shardFor(channelId));
+        Connection destination = connections.get(target.shardFor(channelId));
+        // The same message is read by the failed round and by the retry
+        UUID messageId = UuidGenerator.timeOrdered();
+        PreparedStatement psMove = mock(PreparedStatement.class);
+        when(source.prepareStatement("SELECT ID, AUTHOR, TITLE, CONTENT, CHANNEL_ID, CREATED_TIME FROM MESSAGE WHERE CHANNEL_ID = ? ORDER BY CREATED_TIME, ID LIMIT ?")).thenReturn(psMove);
+        ResultSet failedRound = messageRows(channelId, messageId);
+        ResultSet retriedRound = messageRows(channelId, messageId);
+        ResultSet lastRound = messageRows(channelId);
+        when(psMove.executeQuery()).thenReturn(failedRound, retriedRound, lastRound);
+        doThrow(new SQLException("Connection reset")).doNothing().when(destination).commit();
+
+        try (DatabaseWrapper dbWrapper = new DatabaseWrapper(primary, Map.of("shard-a", shards.get("shard-a"), "shard-b", shards.get("shard-b")))) {
+            dbWrapper.addShard("shard-c", shards.get("shard-c"));
+
+            // When:
+
+            assertThrows(SQLException.class, () -> dbWrapper.rebalance(target));
+            int moved = dbWrapper.rebalance(previous, target);
+
+            // Then:
+
+            assertEquals(1, moved);
+            assertEquals(target, dbWrapper.getShardMap());
+            verify(destination, times(2)).commit();
+            verify(source, times(1)).prepareStatement("DELETE FROM MESSAGE WHERE ID = ?");
+            verify(source, times(1)).commit();
+        }
+    }
+
+    @Test
+    public void testRebalanceMovesLatePosts() throws SQLException {
+        System.out.println("Testing a post that reaches the old shard during a rebalance");
+
+        // Given:
+
+        ShardMap previous = new ShardMap(List.of("shard-a", "shard-b"));
+        ShardMap target = previous.withShard("shard-c");
+        UUID channelId = UuidGenerator.timeOrdered();
+        while (previous.shardFor(channelId).equals(target.shardFor(channelId))) {
+            channelId = UuidGenerator.timeOrdered();
+        }
+        byte[] channelUuidBytes = UuidCodec.toBytes(channelId);
+
+        DataSource primary = mock(DataSource.class);
+        Connection primaryConnection = mock(Connection.class);
+        when(primary.getConnection()).thenReturn(primaryConnection);
+        PreparedStatement psChannels = mock(PreparedStatement.class);
+        when(primaryConnection.prepareStatement("SELECT ID FROM CHANNEL")).thenReturn(psChannels);
+        ResultSet rsChannels = mock(ResultSet.class);
+        when(rsChannels.next()).thenReturn(true, false);
+        when(rsChannels.getBytes("ID")).thenReturn(channelUuidBytes);
+        when(psChannels.executeQuery()).thenReturn(rsChannels);
+
+        Map<String, DataSource> shards = new HashMap<>();
+        Map<String, Connection> connections = new HashMap<>();
+        for (String shard : List.of("shard-a", "shard-b", "shard-c")) {
+            DataSource dataSource = mock(DataSource.class);
+            Connection connection = mock(Connection.class);
+            when(dataSource.getConnection()).thenReturn(connection);
+            when(connection.prepareStatement(anyString())).thenReturn(mock(PreparedStatement.class));
+            shards.put(shard, dataSource);
+            connections.put(shard, connection);
+        }
+        Connection source = connections.get(previous.shardFor(channelId));
+        Connection destination = connections.get(target.shardFor(channelId));
+
+        // The second message reaches the old shard after the first round read it
+        UUID first = UuidGenerator.timeOrdered();
+        UUID late = UuidGenerator.timeOrdered();
+        PreparedStatement psMove = mock(PreparedStatement.class);
+        when(source.prepareStatement("SELECT ID, AUTHOR, TITLE, CONTENT, CHANNEL_ID, CREATED_TIME FROM MESSAGE WHERE CHANNEL_ID = ? ORDER BY CREATED_TIME, ID LIMIT ?")).thenReturn(psMove);
+        ResultSet firstRound = messageRows(channelId, first);
+        ResultSet lateRound = messageRows(channelId, late);
+        ResultSet lastRound = messageRows(channelId);
+        when(psMove.executeQuery()).thenReturn(firstRound, lateRound, lastRound);
+        PreparedStatement psDelete = mock(PreparedStatement.class);
+        when(source.prepareStatement("DELETE FROM MESSAGE WHERE ID = ?")).thenReturn(psDelete);
+        PreparedStatement psSourceStats = mock(PreparedStatement.class);
+        when(source.prepareStatement("UPDATE CHANNEL_STATS SET MESSAGE_COUNT = MESSAGE_COUNT - ? WHERE CHANNEL_ID = ?")).thenReturn(psSourceStats);
+        // Not on the target before each round's insert, there after it
+        PreparedStatement psCount = mock(PreparedStatement.class);
+        ResultSet rsCount = mock(ResultSet.class);
+        when(rsCount.getLong(1)).thenReturn(0L, 1L, 0L, 1L);
+        when(psCount.executeQuery()).thenReturn(rsCount);
+        PreparedStatement psMerge = mock(PreparedStatement.class);
+        when(destination.prepareStatement(anyString())).thenAnswer(x -> {
+            String sql = x.getArgument(0);
+            if (sql.startsWith("SELECT COUNT(*)")) {
+                return psCount;
+            }
+            return sql.startsWith("INSERT INTO CHANNEL_STATS") ? psMerge : mock(PreparedStatement.class);
+        });
+
+        try (DatabaseWrapper dbWrapper = new DatabaseWrapper(primary, Map.of("shard-a", shards.get("shard-a"), "shard-b", shards.get("shard-b")))) {
+            dbWrapper.addShard("shard-c", shards.get("shard-c"));
+
+            // When:
+
+            int moved = dbWrapper.rebalance(target);
+
+            // Then:
+
+            assertEquals(1, moved);
+            verify(destination, times(2)).commit();
+            verify(source, times(2)).commit();
+            verify(psDelete).setBytes(1, UuidCodec.toBytes(first));
+            verify(psDelete).setBytes(1, UuidCodec.toBytes(late));
+            verify(source, times(0)).prepareStatement("DELETE FROM MESSAGE WHERE CHANNEL_ID = ?");
+            verify(psSourceStats, times(2)).setLong(1, 1L);
+            verify(psMerge, times(2)).setLong(2, 1L);
+            verify(source).prepareStatement("DELETE FROM CHANNEL_STATS WHERE CHANNEL_ID = ? AND MESSAGE_COUNT <= 0");
+        }
+    }
+
+    // Rows of the query that picks the messages of a channel to move, one per message id
+    private static ResultSet messageRows(UUID channelId, UUID... messageIds) throws SQLException {
+        ResultSet rs = mock(ResultSet.class);
+        AtomicInteger row = new AtomicInteger(-1);
+        when(rs.next()).thenAnswer(x -> row.incrementAndGet() < messageIds.length);
+        when(rs.getBytes("ID")).thenAnswer(x -> UuidCodec.toBytes(messageIds[row.get()]));
+        when(rs.getBytes("CHANNEL_ID")).thenReturn(UuidCodec.toBytes(channelId));
+        when(rs.getTimestamp("CREATED_TIME")).thenReturn(new Timestamp(1_700_000_000_000L));
+        return rs;
+    }
+
+    @Test
+    public void testUserReadFromReplica() throws SQLException {
+        System.out.println("Testing user lookup on a replica");
+
+        // Given:
+
+        UUID channelId = UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002");
+        DataSource primary = mock(DataSource.class);
+        Connection primaryConnection = mock(Connection.class);
+        when(primary.getConnection()).thenReturn(primaryConnection);
+        when(primaryConnection.prepareStatement(anyString())).thenReturn(mock(PreparedStatement.class));
+        DataSource replica = mock(DataSource.class);
+        Connection replicaConnection = mock(Connection.class);
+        when(replica.getConnection()).thenReturn(replicaConnection);
+        PreparedStatement psUser = mock(PreparedStatement.class);
+        when(replicaConnection.prepareStatement(anyString())).thenReturn(psUser);
+        when(psUser.executeQuery()).thenAnswer(x -> mock(ResultSet.class));
+
+        DatabaseWrapper dbWrapper = new DatabaseWrapper(primary, List.of(replica), new ReplicaConfig());
+        Channel channel = new Channel();
+        channel.id = channelId;
+        dbWrapper.updateChannel(channel);
+
+        // When:
+
+        // Same id as the channel just written: user lookups do not use the recent channel writes
+        User user = dbWrapper.getUser(channelId);
+
+        // Then:
+
+        assertNull(user);
+        verify(replica, times(1)).getConnection();
+        verify(primary, times(1)).getConnection();
+    }
+
+    private Connection mockChannelConnection(UUID channelId, String name) throws SQLException {
+        Connection connection = mock(Connection.class);
+        PreparedStatement psChannel = mock(PreparedStatement.class);
+        when(connection.prepareStatement("SELECT ID, NAME, TYPE, HIDDEN FROM CHANNEL WHERE ID = ?")).thenReturn(psChannel);
+        when(psChannel.executeQuery()).thenAnswer(x -> {
+            ResultSet rs = mock(ResultSet.class);
+            when(rs.next()).thenReturn(true);
+            when(rs.getBytes("ID")).thenReturn(UuidCodec.toBytes(channelId));
+            when(rs.getString("NAME")).thenReturn(name);
+            return rs;
+        });
+        return connection;
+    }
+}
@@ -4,16 +4,22 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -220,7 +226,7 @@ class DemoCodeTest {
         DatabaseWrapper dbWrapper = mock(DatabaseWrapper.class);
         DemoCode dc = new DemoCode(dbWrapper);
 
-        when(dbWrapper.getUser(any())).thenReturn(null);
+        when(dbWrapper.getMembership(any(), any())).thenReturn(Membership.USER_NOT_ALLOWED);
 
         // When:
 
@@ -245,14 +251,8 @@ class DemoCodeTest {
         DatabaseWrapper dbWrapper = mock(DatabaseWrapper.class);
         DemoCode dc = new DemoCode(dbWrapper);
 
-        User user = new User();
-        user.id = UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002");
-        user.suspended = false;
-        user.piiContentLink = "blablabla";
-        user.channels = new HashSet<>();
-        user.channels.add(UUID.randomUUID());
-
-        when(dbWrapper.getUser(UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002"))).thenReturn(user);
+        when(dbWrapper.getMembership(UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002"), UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002")))
+          .thenReturn(Membership.CHANNEL_NOT_AVAILABLE);
 
         // When:
 
@@ -269,7 +269,7 @@ class DemoCodeTest {
     }
 
     @Test
-    void postMessageCheckResult() throws SQLException, UserNotAllowedException, ChannelNotAvailableException {
+    void postMessageCheckResult() throws SQLException, UserNotAllowedException, ChannelNotAvailableException, RateLimitExceededException {
         System.out.println("Testing a complete post message");
 
         // Given:
@@ -278,24 +278,18 @@ class DemoCodeTest {
         Connection connection = mock(Connection.class);
         when(dataSource.getConnection()).thenReturn(connection);
         PreparedStatement psUser = mock(PreparedStatement.class);
-        when(connection.prepareStatement("SELECT BIN_TO_UUID(U.ID) AS USER_ID, U.PII_CONTENT_LINK, U.SUSPENDED, BIN_TO_UUID(UC.CHANNEL_ID) AS CHANNEL_ID, UC.SUSPENDED as CHANNEL_SUSPENDED, C.HIDDEN FROM USER U INNER JOIN USER_CHANNEL UC ON U.ID = UC.USER_ID  INNER JOIN CHANNEL C ON UC.CHANNEL_ID = C.ID WHERE U.ID = ?"))
+        when(connection.prepareStatement("SELECT U.SUSPENDED, C.ID AS CHANNEL_ID, UC.SUSPENDED as CHANNEL_SUSPENDED, C.HIDDEN FROM USER U LEFT JOIN USER_CHANNEL UC ON UC.USER_ID = U.ID AND UC.CHANNEL_ID = ? LEFT JOIN CHANNEL C ON UC.CHANNEL_ID = C.ID WHERE U.ID = ?"))
           .thenReturn(psUser);
 
         ResultSet rsUser = mock(ResultSet.class);
         when(rsUser.getBoolean("SUSPENDED")).thenReturn(false);
-        when(rsUser.getString( "USER_ID" )).thenReturn("162b27bf-4c0b-11ee-a0e1-0242ac110002");
-        when(rsUser.getString( "pii_content_link" )).thenReturn("content-link");
-        when(rsUser.getString( "CHANNEL_ID" )).thenReturn("347047f3-4bf4-11ee-a0e1-0242ac110002");
+        when(rsUser.getBytes( "CHANNEL_ID" )).thenReturn(uuidBytes("347047f3-4bf4-11ee-a0e1-0242ac110002"));
         when(rsUser.getBoolean( "CHANNEL_SUSPENDED" )).thenReturn(false);
 
         PreparedStatement psInsert = mock(PreparedStatement.class);
-        when(connection.prepareStatement("INSERT INTO MESSAGE (AUTHOR, TITLE, CONTENT, CHANNEL_ID, CREATED_TIME) VALUES (?, ?, ?, ?, NOW());")).thenReturn(psInsert);
-        PreparedStatement psQueryMessage = mock(PreparedStatement.class);
-        when(connection.prepareStatement("SELECT BIN_TO_UUID(ID) AS MESSAGE_ID, MAX(CREATED_TIME) AS CREATED FROM MESSAGE WHERE AUTHOR=? GROUP BY ID;")).thenReturn(psQueryMessage);
-        ResultSet rsMessage = mock(ResultSet.class);
-        when(psQueryMessage.executeQuery()).thenReturn(rsMessage);
-        when(rsMessage.getString("MESSAGE_ID")).thenReturn("347047f3-4bf4-11ee-a0e1-0245ac110002");
-        when(rsMessage.next()).thenReturn(true);
+        when(connection.prepareStatement("INSERT INTO MESSAGE (ID, AUTHOR, TITLE, CONTENT, CHANNEL_ID, CREATED_TIME) VALUES (?, ?, ?, ?, ?, NOW())")).thenReturn(psInsert);
+        PreparedStatement psStats = mock(PreparedStatement.class);
+        when(connection.prepareStatement("INSERT INTO CHANNEL_STATS (CHANNEL_ID, MESSAGE_COUNT, LAST_MESSAGE_TIME) VALUES (?, ?, NOW()) ON DUPLICATE KEY UPDATE MESSAGE_COUNT = MESSAGE_COUNT + VALUES(MESSAGE_COUNT), LAST_MESSAGE_TIME = GREATEST(LAST_MESSAGE_TIME, VALUES(LAST_MESSAGE_TIME))")).thenReturn(psStats);
         AtomicInteger first = new AtomicInteger();
         when(rsUser.next()).thenAnswer(x -> {
                 if (first.getAndIncrement() > 0) {
@@ -321,9 +315,291 @@ class DemoCodeTest {
 
         // Then:
 
-        assertEquals(messageId, UUID.fromString("347047f3-4bf4-11ee-a0e1-0245ac110002"));
-        verify(spyDbWrapper).getUser(UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002"));
+        assertEquals(7, messageId.version());
+        byte[] messageIdBytes = new byte[16];
+        ByteBuffer.wrap(messageIdBytes).putLong(messageId.getMostSignificantBits()).putLong(messageId.getLeastSignificantBits());
+        verify(psInsert).setBytes(1, messageIdBytes);
+        verify(psInsert).execute();
+        verify(psStats).setBytes(1, uuidBytes("347047f3-4bf4-11ee-a0e1-0242ac110002"));
+        verify(psStats).executeUpdate();
+        verify(connection).commit();
+        verify(spyDbWrapper).getMembership(UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002"), UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002"));
         verify(spyDbWrapper).postMessage(expectedMessage);
     }
 
-}
\ No newline at end of file
+    @Test
+    void postMessagesToChannelLoadsEachUserOnce() throws SQLException {
+        System.out.println("Testing a bulk post");
+
+        // Given:
+
+        DatabaseWrapper dbWrapper = mock(DatabaseWrapper.class);
+        DemoCode dc = new DemoCode(dbWrapper);
+
+        UUID userId = UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002");
+        UUID channelId = UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002");
+        UUID otherChannelId = UUID.fromString("34fbfb7f-4bf4-11ee-a0e1-0242ac110002");
+        UUID suspendedUserId = UUID.fromString("169cd497-4c0b-11ee-a0e1-0242ac110002");
+        UUID userWithoutChannelsId = UUID.fromString("16f3c1a2-4c0b-11ee-a0e1-0242ac110002");
+
+        User user = new User();
+        user.id = userId;
+        user.channels = new HashSet<>();
+        user.channels.add(channelId);
+        when(dbWrapper.getFreshUser(userId)).thenReturn(user);
+        when(dbWrapper.getFreshUser(suspendedUserId)).thenReturn(null);
+        when(dbWrapper.getMembership(suspendedUserId, channelId)).thenReturn(Membership.USER_NOT_ALLOWED);
+        // getFreshUser finds no user without channels either, getMembership tells it apart
+        when(dbWrapper.getFreshUser(userWithoutChannelsId)).thenReturn(null);
+        when(dbWrapper.getMembership(userWithoutChannelsId, channelId)).thenReturn(Membership.CHANNEL_NOT_AVAILABLE);
+
+        List<Message> messages = new ArrayList<>();
+        messages.add(message(userId, channelId, "TITLE 1"));
+        messages.add(message(userId, otherChannelId, "TITLE 2"));
+        messages.add(message(suspendedUserId, channelId, "TITLE 3"));
+        messages.add(message(userId, channelId, ""));
+        messages.add(message(userId, channelId, "TITLE 5"));
+        messages.add(message(userWithoutChannelsId, channelId, "TITLE 6"));
+        messages.add(message(suspendedUserId, otherChannelId, "TITLE 7"));
+
+        UUID firstId = UUID.randomUUID();
+        UUID secondId = UUID.randomUUID();
+        when(dbWrapper.postMessages(List.of(messages.get(0), messages.get(4)))).thenReturn(List.of(firstId, secondId));
+
+        // When:
+
+        List<PostResult> results = dc.postMessagesToChannel(messages);
+
+        // Then:
+
+        assertEquals(7, results.size());
+        assertEquals(firstId, results.get(0).messageId);
+        assertTrue(results.get(1).error instanceof ChannelNotAvailableException);
+        assertTrue(results.get(2).error instanceof UserNotAllowedException);
+        assertTrue(results.get(3).error instanceof IllegalArgumentException);
+        assertEquals(secondId, results.get(4).messageId);
+        assertTrue(results.get(5).error instanceof ChannelNotAvailableException);
+        assertTrue(results.get(6).error instanceof UserNotAllowedException);
+        verify(dbWrapper, times(1)).getFreshUser(userId);
+        verify(dbWrapper, times(1)).getFreshUser(suspendedUserId);
+        // Rejected for every channel after the first lookup
+        verify(dbWrapper, times(1)).getMembership(eq(suspendedUserId), any());
+        verify(dbWrapper, times(0)).getMembership(userId, channelId);
+    }
+
+    @Test
+    void postMessagesToChannelChecksUsersOnPrimary() throws SQLException {
+        System.out.println("Testing a bulk post with a stale replica");
+
+        // Given:
+
+        UUID userId = UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002");
+        UUID channelId = UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002");
+        // The primary already has the user suspended
+        DataSource primary = mock(DataSource.class);
+        Connection primaryConnection = mock(Connection.class);
+        when(primary.getConnection()).thenReturn(primaryConnection);
+        PreparedStatement psPrimary = mock(PreparedStatement.class);
+        when(primaryConnection.prepareStatement(anyString())).thenReturn(psPrimary);
+        when(psPrimary.executeQuery()).thenAnswer(x -> {
+            ResultSet rs = mock(ResultSet.class);
+            when(rs.next()).thenReturn(true, false);
+            when(rs.getBoolean("SUSPENDED")).thenReturn(true);
+            return rs;
+        });
+        // The replica has not seen it yet
+        DataSource replica = mock(DataSource.class);
+        Connection replicaConnection = mock(Connection.class);
+        when(replica.getConnection()).thenReturn(replicaConnection);
+        PreparedStatement psReplica = mock(PreparedStatement.class);
+        when(replicaConnection.prepareStatement(anyString())).thenReturn(psReplica);
+        when(psReplica.executeQuery()).thenAnswer(x -> {
+            ResultSet rs = mock(ResultSet.class);
+            when(rs.next()).thenReturn(true, false);
+            when(rs.getBytes("CHANNEL_ID")).thenReturn(uuidBytes("347047f3-4bf4-11ee-a0e1-0242ac110002"));
+            return rs;
+        });
+
+        DemoCode dc = new DemoCode(new DatabaseWrapper(primary, List.of(replica), new ReplicaConfig()));
+
+        // When:
+
+        List<PostResult> results = dc.postMessagesToChannel(List.of(message(userId, channelId, "TITLE 1"), message(userId, channelId, "TITLE 2")));
+
+        // Then:
+
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).error instanceof UserNotAllowedException);
+        assertTrue(results.get(1).error instanceof UserNotAllowedException);
+        verify(replica, times(0)).getConnection();
+        verify(primaryConnection, times(0)).prepareStatement("INSERT INTO MESSAGE (ID, AUTHOR, TITLE, CONTENT, CHANNEL_ID, CREATED_TIME) VALUES (?, ?, ?, ?, ?, NOW())");
+    }
+
+    @Test
+    void postMessageToChannelsResolvesMembershipOnce() throws SQLException {
+        System.out.println("Testing a fan-out post");
+
+        // Given:
+
+        DatabaseWrapper dbWrapper = mock(DatabaseWrapper.class);
+        DemoCode dc = new DemoCode(dbWrapper);
+
+        UUID userId = UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002");
+        UUID channelId = UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002");
+        UUID otherChannelId = UUID.fromString("34fbfb7f-4bf4-11ee-a0e1-0242ac110002");
+        UUID hiddenChannelId = UUID.fromString("347047f3-4bf4-11ee-a0e1-e242ac110003");
+
+        User user = new User();
+        user.id = userId;
+        user.channels = new HashSet<>(List.of(channelId, otherChannelId));
+        when(dbWrapper.getFreshUser(userId)).thenReturn(user);
+
+        UUID firstId = UUID.randomUUID();
+        UUID secondId = UUID.randomUUID();
+        when(dbWrapper.postMessages(List.of(message(userId, channelId, "TITLE"), message(userId, otherChannelId, "TITLE"))))
+          .thenReturn(List.of(firstId, secondId));
+
+        // When:
+
+        List<PostResult> results = dc.postMessageToChannels(userId, List.of(channelId, hiddenChannelId, otherChannelId, channelId), "TITLE", "Message content");
+
+        // Then:
+
+        assertEquals(3, results.size());
+        assertEquals(firstId, results.get(0).messageId);
+        assertEquals(hiddenChannelId, results.get(1).message.channelId);
+        assertTrue(results.get(1).error instanceof ChannelNotAvailableException);
+        assertEquals(secondId, results.get(2).messageId);
+        verify(dbWrapper, times(1)).getFreshUser(userId);
+        verify(dbWrapper, times(1)).postMessages(any());
+    }
+
+    @Test
+    void postMessageUsesMembershipCache() throws SQLException, UserNotAllowedException, ChannelNotAvailableException, RateLimitExceededException {
+        System.out.println("Testing membership cache");
+
+        // Given:
+
+        DatabaseWrapper dbWrapper = mock(DatabaseWrapper.class);
+        MembershipCache cache = new MembershipCache(100, 60000);
+        DemoCode dc = new DemoCode(dbWrapper, cache);
+
+        UUID userId = UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002");
+        UUID channelId = UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002");
+        when(dbWrapper.getMembership(userId, channelId)).thenReturn(Membership.ALLOWED);
+
+        // When:
+
+        dc.postMessageToChannel(userId, channelId, "TITLE", "Message content");
+        dc.postMessageToChannel(userId, channelId, "TITLE", "Message content");
+        cache.invalidateChannel(channelId);
+        dc.postMessageToChannel(userId, channelId, "TITLE", "Message content");
+
+        // Then:
+
+        verify(dbWrapper, times(2)).getMembership(userId, channelId);
+        verify(dbWrapper, times(3)).postMessage(any());
+        assertEquals(1, cache.getStats().hits);
+        assertEquals(2, cache.getStats().misses);
+    }
+
+    @Test
+    void repeatedRejectionsAreCached() throws SQLException {
+        System.out.println("Testing rejection cache");
+
+        // Given:
+
+        DatabaseWrapper dbWrapper = mock(DatabaseWrapper.class);
+        MembershipCache cache = new MembershipCache(100, 60000, 100, 5000);
+        DemoCode dc = new DemoCode(dbWrapper, cache);
+
+        UUID suspendedId = UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002");
+        UUID outsiderId = UUID.fromString("169cd497-4c0b-11ee-a0e1-0242ac110002");
+        UUID channelId = UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002");
+        UUID otherChannelId = UUID.fromString("34fbfb7f-4bf4-11ee-a0e1-0242ac110002");
+        when(dbWrapper.getMembership(eq(suspendedId), any())).thenReturn(Membership.USER_NOT_ALLOWED);
+        when(dbWrapper.getMembership(outsiderId, channelId)).thenReturn(Membership.CHANNEL_NOT_AVAILABLE);
+
+        // When:
+
+        for (int i = 0; i < 3; i++) {
+            assertThrows(UserNotAllowedException.class, () -> dc.postMessageToChannel(suspendedId, channelId, "TITLE", "Message content"));
+            assertThrows(UserNotAllowedException.class, () -> dc.postMessageToChannel(suspendedId, otherChannelId, "TITLE", "Message content"));
+            assertThrows(ChannelNotAvailableException.class, () -> dc.postMessageToChannel(outsiderId, channelId, "TITLE", "Message content"));
+        }
+        cache.invalidateUser(outsiderId);
+        assertThrows(ChannelNotAvailableException.class, () -> dc.postMessageToChannel(outsiderId, channelId, "TITLE", "Message content"));
+
+        // Then:
+
+        // A suspended user is rejected on every channel after the first lookup
+        verify(dbWrapper, times(1)).getMembership(eq(suspendedId), any());
+        verify(dbWrapper, times(2)).getMembership(outsiderId, channelId);
+        verify(dbWrapper, times(0)).postMessage(any());
+        CacheStats rejections = cache.getRejectionStats();
+        assertEquals(7, rejections.hits);
+        assertEquals(3, rejections.misses);
+        assertEquals(2, rejections.size);
+    }
+
+    @Test
+    void tryPostReturnsRejections() throws SQLException {
+        System.out.println("Testing post outcomes");
+
+        // Given:
+
+        DatabaseWrapper dbWrapper = mock(DatabaseWrapper.class);
+        Metrics metrics = new Metrics();
+        RateLimitConfig limits = new RateLimitConfig();
+        limits.userPostsPerSecond = 0;
+        limits.channelPostsPerSecond = 0.001;
+        limits.channelBurst = 2;
+        DemoCode dc = new DemoCode(dbWrapper, null, metrics, new PostRateLimiter(limits));
+
+        UUID userId = UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002");
+        UUID suspendedId = UUID.fromString("169cd497-4c0b-11ee-a0e1-0242ac110002");
+        UUID channelId = UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002");
+        UUID messageId = UUID.fromString("018a6a38-0000-7000-8000-000000000000");
+        when(dbWrapper.getMembership(userId, channelId)).thenReturn(Membership.ALLOWED);
+        when(dbWrapper.getMembership(suspendedId, channelId)).thenReturn(Membership.USER_NOT_ALLOWED);
+        when(dbWrapper.postMessage(any())).thenReturn(messageId);
+
+        // When:
+
+        PostOutcome posted = dc.tryPostMessageToChannel(userId, channelId, "TITLE", "Message content");
+        PostOutcome invalid = dc.tryPostMessageToChannel(userId, channelId, "", "Message content");
+        PostOutcome suspended = dc.tryPostMessageToChannel(suspendedId, channelId, "TITLE", "Message content");
+        PostOutcome limited = dc.tryPostMessageToChannel(userId, channelId, "TITLE", "Message content");
+        UserNotAllowedException thrown = assertThrows(UserNotAllowedException.class, () -> new DemoCode(dbWrapper).postMessageToChannel(suspendedId, channelId, "TITLE", "Message content"));
+
+        // Then:
+
+        assertTrue(posted.isPosted());
+        assertEquals(messageId, ((PostOutcome.Posted) posted).messageId);
+        assertEquals(PostOutcome.Rejected.INVALID_ARGS, invalid);
+        assertEquals(PostOutcome.Rejected.USER_NOT_ALLOWED, suspended);
+        assertEquals(PostOutcome.Rejected.RATE_LIMITED, limited);
+        verify(dbWrapper, times(1)).postMessage(any());
+        assertEquals(0, thrown.getStackTrace().length);
+        assertEquals("User does not exist or is suspended", thrown.getMessage());
+        OperationStats stats = metrics.getStats().get("tryPostMessageToChannel");
+        assertEquals(4, stats.count);
+        assertEquals(1, stats.errorsByType.get("IllegalArgumentException"));
+        assertEquals(1, stats.errorsByType.get("UserNotAllowedException"));
+        assertEquals(1, stats.errorsByType.get("RateLimitExceededException"));
+    }
+
+    private Message message(UUID author, UUID channelId, String title) {
+        Message message = new Message();
+        message.author = author;
+        message.channelId = channelId;
+        message.title = title;
+        message.content = "Message content";
+        return message;
+    }
+
+    private static byte[] uuidBytes(String uuid) {
+        UUID id = UUID.fromString(uuid);
+        return ByteBuffer.allocate(16).putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits()).array();
+    }
+}
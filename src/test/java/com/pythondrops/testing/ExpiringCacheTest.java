@@ -0,0 +1,107 @@
+package com.pythondrops.testing;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class ExpiringCacheTest {
+
+    @Test
+    void entriesExpireAfterTtl() {
+        System.out.println("Testing cache expiration");
+
+        // Given:
+
+        AtomicLong now = new AtomicLong();
+        ExpiringCache<String, String> cache = new ExpiringCache<>(10, 1000, now::get);
+        cache.put("key", "value");
+
+        // When:
+
+        String beforeTtl = cache.get("key");
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+        String afterTtl = cache.get("key");
+
+        // Then:
+
+        assertEquals("value", beforeTtl);
+        assertNull(afterTtl);
+        CacheStats stats = cache.getStats();
+        assertEquals(1, stats.hits);
+        assertEquals(1, stats.misses);
+        assertEquals(1, stats.expirations);
+        assertEquals(0, stats.size);
+    }
+
+    @Test
+    void leastRecentlyUsedEntryIsEvicted() {
+        System.out.println("Testing cache size bound");
+
+        // Given:
+
+        ExpiringCache<Integer, String> cache = new ExpiringCache<>(1, 60000);
+        cache.put(1, "one");
+
+        // When:
+
+        cache.put(2, "two");
+
+        // Then:
+
+        assertNull(cache.get(1));
+        assertEquals("two", cache.get(2));
+        assertEquals(1, cache.getStats().evictions);
+    }
+
+    @Test
+    void invalidateIfRemovesMatchingEntries() {
+        System.out.println("Testing cache invalidation");
+
+        // Given:
+
+        ExpiringCache<Integer, String> cache = new ExpiringCache<>(100, 60000);
+        for (int i = 0; i < 10; i++) {
+            cache.put(i, i % 2 == 0 ? "even" : "odd");
+        }
+
+        // When:
+
+        cache.invalidateIf((key, value) -> value.equals("even"));
+        cache.invalidate(1);
+
+        // Then:
+
+        assertEquals(4, cache.size());
+        assertNull(cache.get(0));
+        assertNull(cache.get(1));
+        assertEquals("odd", cache.get(3));
+    }
+
+    @Test
+    void putAfterInvalidationIsSkipped() {
+        System.out.println("Testing cache put of a stale value");
+
+        // Given:
+
+        ExpiringCache<Integer, String> cache = new ExpiringCache<>(100, 60000);
+        long stamp = cache.stamp(1);
+
+        // When:
+
+        cache.invalidate(1);
+        boolean stale = cache.put(1, "old", stamp);
+        boolean fresh = cache.put(1, "new", cache.stamp(1));
+
+        // Then:
+
+        assertFalse(stale);
+        assertTrue(fresh);
+        assertEquals("new", cache.get(1));
+    }
+}
@@ -0,0 +1,131 @@
+package com.pythondrops.testing;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+class InMemoryDatabaseTest {
+
+    private static final UUID USER = UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002");
+    private static final UUID SUSPENDED_USER = UUID.fromString("169cd497-4c0b-11ee-a0e1-0242ac110002");
+    private static final UUID CHANNEL = UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002");
+    private static final UUID HIDDEN_CHANNEL = UUID.fromString("34fbfb7f-4bf4-11ee-a0e1-0242ac110002");
+    private static final UUID SUSPENDED_CHANNEL = UUID.fromString("347047f3-4bf4-11ee-a0e1-e242ac110003");
+
+    private InMemoryDatabase database() {
+        InMemoryDatabase database = new InMemoryDatabase();
+        database.putChannel(channel(CHANNEL, false));
+        database.putChannel(channel(HIDDEN_CHANNEL, true));
+        database.putChannel(channel(SUSPENDED_CHANNEL, false));
+        database.putUser(USER, "https://user.chat.com/internal/pii/93483", false);
+        database.putMembership(USER, CHANNEL, false);
+        database.putMembership(USER, HIDDEN_CHANNEL, false);
+        database.putMembership(USER, SUSPENDED_CHANNEL, true);
+        database.putUser(SUSPENDED_USER, "https://user.chat.com/internal/pii/75676", true);
+        database.putMembership(SUSPENDED_USER, CHANNEL, false);
+        return database;
+    }
+
+    @Test
+    void appliesTheSameRulesAsMysql() throws SQLException {
+        System.out.println("Testing in-memory membership rules");
+
+        // Given:
+
+        InMemoryDatabase database = database();
+        DemoCode dc = new DemoCode(database);
+
+        // When:
+
+        User user = database.getUser(USER);
+
+        // Then:
+
+        assertEquals(Set.of(CHANNEL), user.channels);
+        assertNull(database.getUser(SUSPENDED_USER));
+        assertEquals(Membership.ALLOWED, database.getMembership(USER, CHANNEL));
+        assertEquals(Membership.CHANNEL_NOT_AVAILABLE, database.getMembership(USER, HIDDEN_CHANNEL));
+        assertEquals(Membership.CHANNEL_NOT_AVAILABLE, database.getMembership(USER, SUSPENDED_CHANNEL));
+        assertEquals(Membership.USER_NOT_ALLOWED, database.getMembership(SUSPENDED_USER, CHANNEL));
+        assertThrows(UserNotAllowedException.class, () -> dc.postMessageToChannel(SUSPENDED_USER, CHANNEL, "TITLE", "Message content"));
+        assertThrows(ChannelNotAvailableException.class, () -> dc.postMessageToChannel(USER, HIDDEN_CHANNEL, "TITLE", "Message content"));
+    }
+
+    @Test
+    void pagesAndExportsChannelMessages() throws Exception {
+        System.out.println("Testing in-memory channel timeline");
+
+        // Given:
+
+        InMemoryDatabase database = database();
+        DemoCode dc = new DemoCode(database);
+        List<UUID> posted = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            posted.add(dc.postMessageToChannel(USER, CHANNEL, "TITLE " + i, "Message content"));
+        }
+
+        // When:
+
+        List<UUID> read = new ArrayList<>();
+        Message after = null;
+        Message newest = null;
+        List<Message> page;
+        do {
+            page = dc.getChannelMessages(USER, CHANNEL, after, 10);
+            for (Message message : page) {
+                if (newest == null) {
+                    newest = message;
+                }
+                read.add(message.id);
+                after = message;
+            }
+        } while (page.size() == 10);
+
+        // Then:
+
+        assertEquals(25, read.size());
+        for (int i = 0; i < 25; i++) {
+            assertEquals(posted.get(24 - i), read.get(i));
+        }
+        assertEquals(List.of(), database.getChannelMessages(HIDDEN_CHANNEL, null, 10));
+        ChannelStats stats = database.getChannelStats(CHANNEL);
+        assertEquals(25, stats.messageCount);
+        assertEquals(newest.createdTime, stats.lastMessageTime);
+        assertEquals(0, database.getChannelStats(HIDDEN_CHANNEL).messageCount);
+        assertExported(database, posted);
+    }
+
+    private static void assertExported(InMemoryDatabase database, List<UUID> posted) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(posted.size(), database.exportChannelMessages(CHANNEL, out));
+        MessageExport.Reader reader = new MessageExport.Reader(new ByteArrayInputStream(out.toByteArray()));
+        for (UUID messageId : posted) {
+            Message message = reader.next();
+            assertEquals(messageId, message.id);
+            assertEquals(USER, message.author);
+            assertTrue(message.title.startsWith("TITLE "));
+        }
+        assertNull(reader.next());
+    }
+
+    private static Channel channel(UUID id, boolean hidden) {
+        Channel channel = new Channel();
+        channel.id = id;
+        channel.name = "Channel " + id;
+        channel.type = 1;
+        channel.hidden = hidden;
+        return channel;
+    }
+}
@@ -0,0 +1,114 @@
+package com.pythondrops.testing;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+import org.junit.jupiter.api.Test;
+
+class MetricsTest {
+
+    @Test
+    void histogramPercentilesAreWithinBucketError() {
+        System.out.println("Testing latency histogram percentiles");
+
+        // Given:
+
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        // When:
+
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros * 1000);
+        }
+
+        // Then:
+
+        long[] percentiles = histogram.getPercentiles(50, 99, 100);
+        assertEquals(500_000, percentiles[0], 500_000 * 0.032);
+        assertEquals(990_000, percentiles[1], 990_000 * 0.032);
+        assertEquals(1_000_000, percentiles[2]);
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500_500, histogram.getMean(), 0.001);
+        for (long value : new long[] { 0, 31, 32, 1000, 123_456_789, Long.MAX_VALUE }) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(LatencyHistogram.highestValue(index) >= value);
+            assertTrue(index == 0 || LatencyHistogram.highestValue(index - 1) < value);
+        }
+    }
+
+    @Test
+    void demoCodeCountsErrorsByType() throws Exception {
+        System.out.println("Testing DemoCode metrics");
+
+        // Given:
+
+        UUID userId = UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002");
+        UUID channelId = UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002");
+        UUID hiddenChannelId = UUID.fromString("34fbfb7f-4bf4-11ee-a0e1-0242ac110002");
+        Database database = mock(Database.class);
+        when(database.getMembership(userId, channelId)).thenReturn(Membership.ALLOWED);
+        when(database.getMembership(userId, hiddenChannelId)).thenReturn(Membership.CHANNEL_NOT_AVAILABLE);
+        Metrics metrics = new Metrics();
+        DemoCode dc = new DemoCode(new MeteredDatabase(database, metrics), null, metrics);
+
+        // When:
+
+        dc.postMessageToChannel(userId, channelId, "TITLE", "Message content");
+        dc.postMessageToChannel(userId, channelId, "TITLE", "Message content");
+        assertThrows(ChannelNotAvailableException.class, () -> dc.postMessageToChannel(userId, hiddenChannelId, "TITLE", "Message content"));
+        assertThrows(IllegalArgumentException.class, () -> dc.postMessageToChannel(userId, channelId, "", "Message content"));
+        dc.getChannelMessages(userId, channelId, null, 10);
+
+        // Then:
+
+        Map<String, OperationStats> stats = metrics.getStats();
+        OperationStats post = stats.get("postMessageToChannel");
+        assertEquals(4, post.count);
+        assertEquals(2, post.errors);
+        assertEquals(Map.of("ChannelNotAvailableException", 1L, "IllegalArgumentException", 1L), post.errorsByType);
+        assertTrue(post.maxMicros >= post.p50Micros);
+        assertEquals(4, stats.get("db.getMembership").count);
+        assertEquals(2, stats.get("db.postMessage").count);
+        // Same method name on both levels, each counted once
+        assertEquals(1, stats.get("getChannelMessages").count);
+        assertEquals(1, stats.get("db.getChannelMessages").count);
+    }
+
+    @Test
+    void publishedThroughJmx() throws Exception {
+        System.out.println("Testing metrics MXBean");
+
+        // Given:
+
+        Metrics metrics = new Metrics();
+        metrics.record("getUser", metrics.start());
+        metrics.register("metrics-test");
+
+        try {
+
+            // When:
+
+            ObjectName name = new ObjectName("com.pythondrops.testing:type=Metrics,name=\"metrics-test\"");
+            TabularData counts = (TabularData) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Counts");
+
+            // Then:
+
+            assertEquals(1L, counts.get(new Object[] { "getUser" }).get("value"));
+        } finally {
+            metrics.unregister();
+        }
+        assertTrue(Metrics.DISABLED.getStats().isEmpty());
+        Metrics.DISABLED.record("getUser", Metrics.DISABLED.start());
+        assertTrue(Metrics.DISABLED.getStats().isEmpty());
+    }
+}
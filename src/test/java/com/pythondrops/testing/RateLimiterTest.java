@@ -0,0 +1,96 @@
+package com.pythondrops.testing;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class RateLimiterTest {
+
+    @Test
+    void allowsBurstThenSustainedRate() {
+        System.out.println("Testing token bucket");
+
+        // Given:
+
+        AtomicLong now = new AtomicLong();
+        RateLimiter limiter = new RateLimiter(10, 5, 1000, now::get);
+        UUID key = UUID.randomUUID();
+
+        // When / Then:
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire(key));
+        }
+        assertFalse(limiter.tryAcquire(key));
+        assertTrue(limiter.tryAcquire(UUID.randomUUID())); // Other keys are not affected
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(limiter.tryAcquire(key));
+        assertFalse(limiter.tryAcquire(key));
+        limiter.release(key);
+        assertTrue(limiter.tryAcquire(key));
+    }
+
+    @Test
+    void forgetsIdleKeysWhenFull() {
+        System.out.println("Testing rate limiter memory bound");
+
+        // Given:
+
+        AtomicLong now = new AtomicLong();
+        RateLimiter limiter = new RateLimiter(1, 1, 16 * 4, now::get);
+
+        // When:
+
+        for (int i = 0; i < 10000; i++) {
+            limiter.tryAcquire(UUID.randomUUID());
+            now.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+        }
+
+        // Then:
+
+        assertTrue(limiter.size() <= 16 * 4);
+    }
+
+    @Test
+    void postsOverTheRateAreShedBeforeTheDatabase() throws Exception {
+        System.out.println("Testing post admission control");
+
+        // Given:
+
+        RateLimitConfig config = new RateLimitConfig();
+        config.userPostsPerSecond = 1;
+        config.userBurst = 1;
+        config.channelPostsPerSecond = 1;
+        config.channelBurst = 1;
+        PostRateLimiter limiter = new PostRateLimiter(config, () -> 0);
+        Database database = mock(Database.class);
+        DemoCode dc = new DemoCode(database, null, Metrics.DISABLED, limiter);
+        UUID channelId = UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002");
+        UUID userId = UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002");
+        UUID otherUserId = UUID.fromString("169cd497-4c0b-11ee-a0e1-0242ac110002");
+        limiter.acquire(userId, UUID.randomUUID());
+
+        // When:
+
+        Exception byUser = assertThrows(RateLimitExceededException.class, () -> dc.postMessageToChannel(userId, channelId, "TITLE", "Message content"));
+        limiter.acquire(otherUserId, channelId);
+        Exception byChannel = assertThrows(RateLimitExceededException.class, () -> dc.postMessageToChannel(UUID.randomUUID(), channelId, "TITLE", "Message content"));
+
+        // Then:
+
+        assertEquals("Too many posts by user", byUser.getMessage());
+        assertEquals("Too many posts to channel", byChannel.getMessage());
+        assertEquals(1, limiter.getRejectedByUser());
+        assertEquals(1, limiter.getRejectedByChannel());
+        verifyNoInteractions(database);
+    }
+}
@@ -0,0 +1,53 @@
+package com.pythondrops.testing;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+class ShardMapTest {
+
+    @Test
+    void addingAShardMovesOnlyItsShareOfChannels() {
+        System.out.println("Testing consistent hashing of channels");
+
+        // Given:
+
+        ShardMap three = new ShardMap(List.of("shard-c", "shard-a", "shard-b"));
+        int channels = 30_000;
+
+        // When:
+
+        ShardMap four = three.withShard("shard-d");
+        Map<String, Integer> counts = new HashMap<>();
+        int moved = 0;
+        for (int i = 0; i < channels; i++) {
+            UUID channelId = UuidGenerator.timeOrdered();
+            String before = three.shardFor(channelId);
+            String after = four.shardFor(channelId);
+            counts.merge(after, 1, Integer::sum);
+            if (!before.equals(after)) {
+                moved++;
+                // Channels only move to the new shard
+                assertEquals("shard-d", after);
+            }
+        }
+
+        // Then:
+
+        assertEquals(List.of("shard-a", "shard-b", "shard-c"), three.getShards());
+        assertEquals(4, counts.size());
+        for (int count : counts.values()) {
+            assertTrue(count > channels / 4 * 0.7 && count < channels / 4 * 1.3, counts.toString());
+        }
+        assertTrue(moved > channels / 4 * 0.7 && moved < channels / 4 * 1.3, "moved " + moved);
+        UUID channelId = UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002");
+        assertEquals(three.shardFor(channelId), new ShardMap(List.of("shard-a", "shard-b", "shard-c")).shardFor(channelId));
+        assertEquals(three.shardFor(channelId), four.withoutShard("shard-d").shardFor(channelId));
+    }
+}
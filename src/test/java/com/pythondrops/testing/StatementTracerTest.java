@@ -0,0 +1,133 @@
+package com.pythondrops.testing;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.Test;
+
+class StatementTracerTest {
+
+    @Test
+    void tracesQueriesAndBatches() throws SQLException {
+        System.out.println("Testing statement tracing");
+
+        // Given:
+
+        DataSource dataSource = mock(DataSource.class);
+        Connection connection = mock(Connection.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        PreparedStatement psMembership = mock(PreparedStatement.class);
+        when(connection.prepareStatement(anyString())).thenReturn(psMembership);
+        ResultSet rsMembership = mock(ResultSet.class);
+        when(rsMembership.next()).thenReturn(true, false);
+        when(rsMembership.getBytes("CHANNEL_ID")).thenReturn(new byte[16]);
+        when(psMembership.executeQuery()).thenReturn(rsMembership);
+        when(psMembership.executeBatch()).thenReturn(new int[] { 1, 1 });
+
+        DatabaseWrapper dbWrapper = new DatabaseWrapper(dataSource);
+        TraceConfig config = new TraceConfig();
+        config.slowThresholdMillis = 0; // Every statement is slow
+        StatementTracer tracer = dbWrapper.enableTracing(config);
+
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            Message message = new Message();
+            message.author = UUID.randomUUID();
+            message.channelId = UUID.randomUUID();
+            message.title = "TITLE";
+            message.content = "Message content";
+            messages.add(message);
+        }
+
+        // When:
+
+        dbWrapper.getMembership(UUID.randomUUID(), UUID.randomUUID());
+        dbWrapper.postMessages(messages);
+
+        // Then:
+
+        List<StatementTrace> traces = tracer.getRecentTraces();
+        assertEquals(3, traces.size()); // The last one updates CHANNEL_STATS
+        StatementTrace query = traces.get(0);
+        assertEquals(2, query.binds);
+        assertEquals(1, query.rows);
+        assertTrue(query.slow);
+        assertNull(query.error);
+        assertTrue(query.fingerprint.startsWith("SELECT U.SUSPENDED, C.ID AS CHANNEL_ID"));
+        StatementTrace batch = traces.get(1);
+        assertEquals(10, batch.binds);
+        assertEquals(2, batch.batchSize);
+        assertEquals(2, batch.rows);
+        assertEquals("INSERT INTO MESSAGE (ID, AUTHOR, TITLE, CONTENT, CHANNEL_ID, CREATED_TIME) VALUES (?, NOW())", batch.fingerprint);
+        assertEquals(3, tracer.getSlowStatementCount());
+        assertEquals(tracer, dbWrapper.getStatementTracer());
+    }
+
+    @Test
+    void keepsSampledAndFailedStatements() throws SQLException {
+        System.out.println("Testing trace sampling");
+
+        // Given:
+
+        DataSource dataSource = mock(DataSource.class);
+        Connection connection = mock(Connection.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        PreparedStatement psUpdate = mock(PreparedStatement.class);
+        when(connection.prepareStatement(anyString())).thenReturn(psUpdate);
+        when(psUpdate.executeUpdate()).thenReturn(1, 1, 1, 1);
+
+        TraceConfig config = new TraceConfig();
+        config.slowThresholdMillis = 60000;
+        config.sampleEvery = 2;
+        config.bufferSize = 3;
+        StatementTracer tracer = new StatementTracer(dataSource, config);
+
+        // When:
+
+        for (int i = 0; i < 8; i++) {
+            try (Connection conn = tracer.getConnection();
+                 PreparedStatement update = conn.prepareStatement("UPDATE CHANNEL SET HIDDEN = true WHERE TYPE = 3")) {
+                update.executeUpdate();
+            }
+        }
+        when(psUpdate.executeUpdate()).thenThrow(new SQLException("Lock wait timeout exceeded"));
+        try (Connection conn = tracer.getConnection();
+             PreparedStatement update = conn.prepareStatement("UPDATE CHANNEL SET HIDDEN = true WHERE TYPE = 3")) {
+            assertThrows(SQLException.class, update::executeUpdate);
+        }
+
+        // Then:
+
+        assertEquals(9, tracer.getStatementCount());
+        assertEquals(0, tracer.getSlowStatementCount());
+        List<StatementTrace> traces = tracer.getRecentTraces();
+        assertEquals(3, traces.size()); // 4 sampled + 1 failed, the oldest overwritten
+        assertEquals("SQLException", traces.get(2).error);
+        assertEquals("UPDATE CHANNEL SET HIDDEN = true WHERE TYPE = ?", traces.get(0).fingerprint);
+    }
+
+    @Test
+    void fingerprintHidesLiterals() {
+        System.out.println("Testing SQL fingerprint");
+
+        assertEquals("SELECT * FROM MESSAGE WHERE ID IN (?) AND TITLE = ? LIMIT ?",
+          StatementTracer.fingerprint("SELECT *  FROM MESSAGE\n WHERE ID IN (1, 2,3) AND TITLE = 'it''s' LIMIT 50"));
+        assertEquals("SELECT BIN_TO_UUID(ID) FROM USER_CHANNEL UC WHERE UC.USER_ID = ?",
+          StatementTracer.fingerprint("SELECT BIN_TO_UUID(ID) FROM USER_CHANNEL UC WHERE UC.USER_ID = ?"));
+    }
+}
@@ -0,0 +1,39 @@
+package com.pythondrops.testing;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+class UuidCodecTest {
+
+    @Test
+    void matchesTheBinaryColumnLayout() {
+        System.out.println("Testing UUID binary codec");
+
+        // Given:
+
+        UUID id = UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002");
+        byte[] expected = ByteBuffer.allocate(16).putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits()).array();
+
+        // When:
+
+        byte[] encoded = UuidCodec.toBytes(id);
+
+        // Then:
+
+        assertArrayEquals(expected, encoded);
+        assertEquals(id, UuidCodec.fromBytes(encoded));
+        assertNotSame(encoded, UuidCodec.toBytes(id));
+        assertNull(UuidCodec.fromBytes(null));
+        byte[] twoIds = new byte[32];
+        UuidCodec.write(id, twoIds, 16);
+        assertEquals(id, UuidCodec.read(twoIds, 16));
+        assertEquals(new UUID(0, 0), UuidCodec.read(twoIds, 0));
+    }
+}
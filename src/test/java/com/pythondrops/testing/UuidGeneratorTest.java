@@ -0,0 +1,33 @@
+package com.pythondrops.testing;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+class UuidGeneratorTest {
+
+    @Test
+    void idsAreVersion7AndIncreasing() {
+        System.out.println("Testing time-ordered ids");
+
+        // Given:
+
+        long before = System.currentTimeMillis();
+        UUID previous = UuidGenerator.timeOrdered();
+
+        // When / Then:
+
+        for (int i = 0; i < 10000; i++) {
+            UUID next = UuidGenerator.timeOrdered();
+            assertEquals(7, next.version());
+            assertEquals(2, next.variant());
+            // MySQL compares BINARY(16) as unsigned bytes, the timestamp and counter bits are never negative
+            assertTrue(Long.compareUnsigned(next.getMostSignificantBits(), previous.getMostSignificantBits()) > 0);
+            previous = next;
+        }
+        assertTrue((previous.getMostSignificantBits() >>> 16) >= before);
+    }
+}
@@ -0,0 +1,152 @@
+package com.pythondrops.testing;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class WriteBehindWriterTest {
+
+    private Message message(int i) {
+        Message message = new Message();
+        message.author = UUID.fromString("162b27bf-4c0b-11ee-a0e1-0242ac110002");
+        message.channelId = UUID.fromString("347047f3-4bf4-11ee-a0e1-0242ac110002");
+        message.title = "TITLE " + i;
+        message.content = "Message content";
+        return message;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void messagesAreCommittedInGroups() throws Exception {
+        System.out.println("Testing write-behind group commit");
+
+        // Given:
+
+        DatabaseWrapper dbWrapper = mock(DatabaseWrapper.class);
+        when(dbWrapper.postMessages(any())).thenAnswer(x -> {
+            List<UUID> ids = new ArrayList<>();
+            for (int i = 0; i < ((List<Message>) x.getArgument(0)).size(); i++) {
+                ids.add(UUID.randomUUID());
+            }
+            return ids;
+        });
+
+        List<CompletableFuture<UUID>> futures = new ArrayList<>();
+        WriteBehindStats stats;
+        try (WriteBehindWriter writer = new WriteBehindWriter(dbWrapper, 100, 4, 5)) {
+
+            // When:
+
+            for (int i = 0; i < 10; i++) {
+                futures.add(writer.postMessage(message(i)));
+            }
+            for (CompletableFuture<UUID> future : futures) {
+                future.get(5, TimeUnit.SECONDS);
+            }
+            stats = writer.getStats();
+        }
+
+        // Then:
+
+        HashSet<UUID> ids = new HashSet<>();
+        for (CompletableFuture<UUID> future : futures) {
+            ids.add(future.get());
+        }
+        assertEquals(10, ids.size());
+        assertEquals(10, stats.messagesCommitted);
+        assertEquals(0, stats.queueDepth);
+        long groups = 0;
+        for (long count : stats.groupSizes) {
+            groups += count;
+        }
+        assertEquals(stats.groupsCommitted, groups);
+        assertTrue(stats.groupsCommitted >= 3);
+    }
+
+    @Test
+    void failedGroupFailsEveryMessage() throws Exception {
+        System.out.println("Testing write-behind failure");
+
+        // Given:
+
+        DatabaseWrapper dbWrapper = mock(DatabaseWrapper.class);
+        when(dbWrapper.postMessages(any())).thenThrow(new SQLException("Database down"));
+
+        try (WriteBehindWriter writer = new WriteBehindWriter(dbWrapper, 100, 2, 1000)) {
+
+            // When:
+
+            CompletableFuture<UUID> first = writer.postMessage(message(1));
+            CompletableFuture<UUID> second = writer.postMessage(message(2));
+
+            // Then:
+
+            ExecutionException exception = assertThrows(ExecutionException.class, () -> first.get(5, TimeUnit.SECONDS));
+            assertTrue(exception.getCause() instanceof SQLException);
+            assertThrows(ExecutionException.class, () -> second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, writer.getStats().groupsFailed);
+        }
+    }
+
+    @Test
+    void postAfterCloseIsRejected() throws Exception {
+        System.out.println("Testing write-behind post after close");
+
+        // Given:
+
+        DatabaseWrapper dbWrapper = mock(DatabaseWrapper.class);
+        WriteBehindWriter writer = new WriteBehindWriter(dbWrapper, 100, 2, 1000);
+        writer.close();
+
+        // When:
+
+        CompletableFuture<UUID> late = writer.postMessage(message(1));
+
+        // Then:
+
+        ExecutionException exception = assertThrows(ExecutionException.class, () -> late.get(5, TimeUnit.SECONDS));
+        assertTrue(exception.getCause() instanceof RejectedExecutionException);
+        assertEquals(0, writer.getStats().queueDepth);
+    }
+
+    @Test
+    void flusherErrorFailsQueuedMessages() throws Exception {
+        System.out.println("Testing write-behind flusher error");
+
+        // Given:
+
+        DatabaseWrapper dbWrapper = mock(DatabaseWrapper.class);
+        when(dbWrapper.postMessages(any())).thenThrow(new OutOfMemoryError("Java heap space"));
+
+        try (WriteBehindWriter writer = new WriteBehindWriter(dbWrapper, 100, 2, 1000)) {
+
+            // When:
+
+            CompletableFuture<UUID> first = writer.postMessage(message(1));
+            CompletableFuture<UUID> second = writer.postMessage(message(2));
+
+            // Then:
+
+            ExecutionException exception = assertThrows(ExecutionException.class, () -> first.get(5, TimeUnit.SECONDS));
+            assertTrue(exception.getCause() instanceof OutOfMemoryError);
+            assertThrows(ExecutionException.class, () -> second.get(5, TimeUnit.SECONDS));
+            CompletableFuture<UUID> afterError = writer.postMessage(message(3));
+            assertThrows(ExecutionException.class, () -> afterError.get(5, TimeUnit.SECONDS));
+        }
+    }
+}